@@ -1,7 +1,7 @@
 package org.cleanas2.common;
 
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
-import org.apache.http.impl.BHttpConnectionBase;
 
 /**
  * Contains information about an incoming connection.  used in handling incoming messages, and in debugging.
@@ -19,11 +19,11 @@ public class ConnectionInfo {
     public ConnectionInfo() {
     }
 
-    public ConnectionInfo(BHttpConnectionBase connection, HttpRequest request) {
+    public ConnectionInfo(HttpInetConnection connection, HttpRequest request) {
         populateFrom(connection, request);
     }
 
-    void populateFrom(BHttpConnectionBase connection, HttpRequest request) {
+    void populateFrom(HttpInetConnection connection, HttpRequest request) {
         sourceIp = connection.getRemoteAddress().toString();
         sourcePort = connection.getLocalPort();
         destinationIp = connection.getLocalAddress().toString();
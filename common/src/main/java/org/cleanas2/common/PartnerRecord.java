@@ -49,6 +49,17 @@ public class PartnerRecord {
         return !Str.isEmpty(this.sendSettings.encryptAlgorithm);
     }
 
+    public boolean shouldCompress() {
+        return !Str.isEmpty(this.sendSettings.compress) && !"none".equalsIgnoreCase(this.sendSettings.compress);
+    }
+
+    /**
+     * True if the file is compressed first and the compressed data is signed, false if the signed data is compressed
+     */
+    public boolean compressBeforeSigning() {
+        return shouldCompress() && !"after-signing".equalsIgnoreCase(this.sendSettings.compress);
+    }
+
     public static class SendSettings {
 
         /**
@@ -57,15 +68,22 @@ public class PartnerRecord {
         public String url;
 
         /**
-         * The encryption algorithm to use.  Valid values are "3DES", "" (for no encryption)
+         * The encryption algorithm to use.  Valid values are "AES128", "AES192", "AES256", "3DES", "RC2", "" (for no
+         * encryption).  AES is much faster than 3DES, if the partner supports it
          */
         public String encryptAlgorithm;
 
         /**
-         * The signing algorithm to use, and generate a content MIC from.  "SHA1" or "MD5"
+         * The signing algorithm to use, and generate a content MIC from.  "SHA1", "SHA256", "SHA384", "SHA512" or "MD5"
          */
         public String signAlgorithm;
 
+        /**
+         * Compress the file with zlib (RFC 5402).  Valid values are "before-signing", "after-signing", "" or "none".
+         * Compressing before signing is the usual choice; if the file is not signed they are the same
+         */
+        public String compress;
+
         /**
          * Transfer encoding to use.  This should not normally change, and should always be "binary".  if
          * another value is used, the BC library may not encrypt/sign as expected by the receiver.
@@ -84,6 +102,24 @@ public class PartnerRecord {
          */
         public String mdnOptions;
 
+        /**
+         * The most connections to keep open to this partner's url at once.  0 (the default) uses the server's
+         * "client.maxConnectionsPerPartner" setting
+         */
+        public int maxConnections;
+
+        /**
+         * The most files to send to this partner at the same time.  0 (the default) uses the server's
+         * "sendThreadsPerPartner" setting
+         */
+        public int sendThreads;
+
+        /**
+         * This partner's share of the send slots when other partners have files waiting too, e.g. 2 gets twice
+         * as many bytes sent as a partner with 1.  0 (the default) is the same as 1
+         */
+        public int weight;
+
         /**
          * The type of MDN to send.  Valid values are "none", "standard", "async".  Default is STANDARD (synchronous)
          * Note: Cyclone Server does not handle ASYNC MDN correctly (it ignores the "reply to" URL in the headers)
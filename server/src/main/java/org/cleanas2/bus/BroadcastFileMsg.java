@@ -0,0 +1,25 @@
+package org.cleanas2.bus;
+
+import org.cleanas2.service.net.util.BroadcastContent;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and signs a file once for all of the receivers.  When it returns, "content" has the (shared) content
+ * for each receiver that can be sent to, which is then passed along in a PrepareFileMsg for each of them.
+ */
+public class BroadcastFileMsg extends MessageBase {
+    public final Path file;
+    public final String senderId;
+    public final List<String> receiverIds;
+    public final Map<String, BroadcastContent> content = new LinkedHashMap<>();
+
+    public BroadcastFileMsg(Path file, String senderId, List<String> receiverIds) {
+        this.file = file;
+        this.senderId = senderId;
+        this.receiverIds = receiverIds;
+    }
+}
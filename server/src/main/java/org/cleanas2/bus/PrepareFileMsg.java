@@ -0,0 +1,24 @@
+package org.cleanas2.bus;
+
+import org.cleanas2.message.OutgoingFileMessage;
+import org.cleanas2.service.net.util.BroadcastContent;
+
+/**
+ * Asks the file sender to read, sign and encrypt a file now, and keep the result until a SendFileMsg for the
+ * same message comes along.  Lets the next files for a partner be prepared while the current one is sent.
+ * <p/>
+ * For a broadcast the file was already read and signed by a BroadcastFileMsg, and only needs encrypting.
+ */
+public class PrepareFileMsg extends MessageBase {
+    public final OutgoingFileMessage as2message;
+    public final BroadcastContent broadcast;
+
+    public PrepareFileMsg(OutgoingFileMessage msg) {
+        this(msg, null);
+    }
+
+    public PrepareFileMsg(OutgoingFileMessage msg, BroadcastContent broadcast) {
+        as2message = msg;
+        this.broadcast = broadcast;
+    }
+}
@@ -8,6 +8,9 @@ import org.cleanas2.message.OutgoingFileMessage;
 public class SendFileMsg extends MessageBase {
     public final OutgoingFileMessage as2message;
 
+    // set when the send failed because the partner could not be reached (not when it rejected the message)
+    public boolean partnerUnreachable = false;
+
     public SendFileMsg(OutgoingFileMessage msg) {
         as2message = msg;
     }
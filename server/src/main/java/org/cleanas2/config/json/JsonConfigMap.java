@@ -122,6 +122,10 @@ public class JsonConfigMap {
         return (int) get(name);
     }
 
+    public boolean getBoolean(String name) {
+        return (boolean) get(name);
+    }
+
     public String formatName(String name) {
         if (StringUtils.isBlank(parent)) {
             return name;
@@ -196,4 +200,9 @@ public class JsonConfigMap {
         if (has(name)) return getInt(name);
         return defaultValue;
     }
+
+    public boolean getOrDefault(String name, boolean defaultValue) {
+        if (has(name)) return getBoolean(name);
+        return defaultValue;
+    }
 }
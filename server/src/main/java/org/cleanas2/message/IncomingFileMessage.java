@@ -1,7 +1,7 @@
 package org.cleanas2.message;
 
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
-import org.apache.http.impl.BHttpConnectionBase;
 import org.cleanas2.common.MdnMode;
 import org.cleanas2.service.net.util.NetUtil;
 
@@ -13,7 +13,7 @@ public class IncomingFileMessage extends IncomingMessage {
     public MdnMode mdnMode = MdnMode.NONE;
     public String fileName;
 
-    public IncomingFileMessage(BHttpConnectionBase connection, HttpRequest request) {
+    public IncomingFileMessage(HttpInetConnection connection, HttpRequest request) {
         super(connection, request);
         messageId = requestHeaders.get("Message-ID");
         mdnMode = NetUtil.getMdnMode(request);
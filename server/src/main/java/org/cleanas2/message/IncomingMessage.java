@@ -1,7 +1,7 @@
 package org.cleanas2.message;
 
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
-import org.apache.http.impl.BHttpConnectionBase;
 import org.cleanas2.common.ConnectionInfo;
 import org.cleanas2.service.net.util.NetUtil;
 
@@ -25,7 +25,7 @@ public class IncomingMessage {
     public final String receiverId;
     public final String senderId;
 
-    public IncomingMessage(BHttpConnectionBase connection, HttpRequest request) {
+    public IncomingMessage(HttpInetConnection connection, HttpRequest request) {
         this.connectionInfo = new ConnectionInfo(connection, request);
         this.requestHeaders.putAll(NetUtil.httpHeadersToMap(request));
         this.senderId = getOrDefault(requestHeaders, "AS2-From", "");
@@ -22,6 +22,7 @@ public class OutgoingFileMessage {
     public String outgoingMic;
     public final PendingInfo pendingInfo = new PendingInfo();
     public String status; // pending, etc
+    public boolean shared; // a broadcast: the same file is going to other partners, so it must be left where it is
 
     public OutgoingFileMessage(Path file, String senderId, String receiverId) {
         this.filePath = file;
@@ -62,6 +62,7 @@ public class CleanAS2Server {
                 CertificateService.class,
                 CompanyService.class,
                 PartnerService.class,
+                HttpClientService.class,
                 // ---------
                 ServerEventConsoleLog.class,
                 AsyncMdnReceiverService.class,
@@ -72,6 +72,9 @@ public class PartnerService implements ConfigurableService, AdminDump {
             WatchDirectoryMsg wd = new WatchDirectoryMsg(newFolder, company.getAs2id(), p.as2id);
             MessageBus.publishAsync(wd);
         }
+
+        // files put in the broadcast directory go to every partner we can send to (no receiver)
+        MessageBus.publishAsync(new WatchDirectoryMsg(config.getDirectory(SystemDir.Broadcast), company.getAs2id(), null));
     }
 
     public PartnerRecord getPartner(String as2id) {
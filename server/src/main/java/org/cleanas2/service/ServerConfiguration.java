@@ -33,6 +33,7 @@ public class ServerConfiguration implements ConfigurableService {
             SystemDir.PendingMdnInfo, "{system}/pending/mdn-info",
             SystemDir.Inbox, "{home}/inbox",
             SystemDir.Outbox, "{home}/outbox",
+            SystemDir.Broadcast, "{home}/broadcast",
             SystemDir.Temp, "{system}/temp"
     );
 
@@ -44,6 +45,8 @@ public class ServerConfiguration implements ConfigurableService {
 
     private String url;
     private int mdnPort;
+    private int spoolThreshold;
+    private String cipherProvider;
 
     public Path getDirectory(SystemDir dir) {
         return Paths.get(systemDirs.get(dir));
@@ -53,13 +56,16 @@ public class ServerConfiguration implements ConfigurableService {
         JsonConfigMap server = options.getSection("server", true);
         this.url = server.getString("url");
         this.mdnPort = server.getInt("ports.receiveMdn");
+        this.spoolThreshold = server.getOrDefault("spoolThreshold", 1024 * 1024);
+        this.cipherProvider = server.getOrDefault("cipherProvider", "SunJCE");
         if (server.hasSection("directories")) {
             JsonConfigMap dirs = server.getSection("directories");
             Map<String, SystemDir> mapping = map(
                     "certificates", SystemDir.Certs,
                     "system", SystemDir.System,
                     "inbox", SystemDir.Inbox,
-                    "outbox", SystemDir.Outbox
+                    "outbox", SystemDir.Outbox,
+                    "broadcast", SystemDir.Broadcast
             );
             for (String key : mapping.keySet()) {
                 if (dirs.has(key)) {
@@ -96,6 +102,21 @@ public class ServerConfiguration implements ConfigurableService {
         }
     }
 
+    /**
+     * Incoming messages larger than this (in bytes) are written to the temp directory while they are
+     * received, instead of being held in memory
+     */
+    public int getSpoolThreshold() {
+        return spoolThreshold;
+    }
+
+    /**
+     * The JCA provider that encrypts and decrypts message content (the keys are always done by bouncy castle)
+     */
+    public String getCipherProvider() {
+        return cipherProvider;
+    }
+
     public String getAsyncMdnUrl() {
         return url + ":" + mdnPort;
     }
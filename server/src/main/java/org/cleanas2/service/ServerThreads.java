@@ -0,0 +1,75 @@
+package org.cleanas2.service;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.util.NamedThreadFactory;
+import org.cleanas2.util.VirtualThreads;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.*;
+
+/**
+ * Decides what kind of threads run the connection handlers and send pipelines, from the "server.threads"
+ * setting:
+ * <pre>
+ * "server": {
+ *     "threads": "virtual"     // "platform" (default) = normal threads, "virtual" = java 21+ virtual threads
+ * }
+ * </pre>
+ * In virtual mode a blocked handler (reading a slow upload, waiting on a partner's MDN) only costs a
+ * little memory, so we can run one per connection and one per outgoing file without sizing thread pools.
+ * If the JVM does not support virtual threads we log a warning and fall back to platform threads.
+ */
+@Singleton
+public class ServerThreads {
+
+    private static final Log logger = LogFactory.getLog(ServerThreads.class.getSimpleName());
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private final boolean virtual;
+
+    @Inject
+    public ServerThreads(JsonConfigMap options) throws Exception {
+        JsonConfigMap server = options.getSection("server", true);
+        String mode = server.getOrDefault("threads", PLATFORM).toLowerCase();
+
+        if (!PLATFORM.equals(mode) && !VIRTUAL.equals(mode)) {
+            throw new Exception(String.format("Unknown thread mode \"%s\" in \"%s\", must be '%s' or '%s'",
+                    mode, server.formatName("threads"), PLATFORM, VIRTUAL));
+        }
+
+        if (VIRTUAL.equals(mode) && !VirtualThreads.isAvailable()) {
+            logger.warn("Virtual threads need java 21 or newer (running " + System.getProperty("java.version") + "), using platform threads");
+            this.virtual = false;
+        } else {
+            this.virtual = VIRTUAL.equals(mode);
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public String getMode() {
+        return virtual ? VIRTUAL : PLATFORM;
+    }
+
+    /**
+     * Creates a factory for threads named "[prefix]-1", "[prefix]-2", etc, of the configured kind
+     */
+    public ThreadFactory newThreadFactory(String prefix) {
+        return virtual ? VirtualThreads.newThreadFactory(prefix) : new NamedThreadFactory(prefix);
+    }
+
+    /**
+     * Creates an executor that starts a new thread for every task, and never queues.  Meant for virtual mode,
+     * where threads are cheap enough to not be pooled.
+     */
+    public ExecutorService newThreadPerTaskExecutor(String prefix) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), newThreadFactory(prefix));
+    }
+}
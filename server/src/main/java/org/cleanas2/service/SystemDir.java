@@ -14,6 +14,7 @@ public enum SystemDir {
     PendingMdnInfo,
     Inbox,
     Outbox,
+    Broadcast,
     Mdn,
     Temp,
 }
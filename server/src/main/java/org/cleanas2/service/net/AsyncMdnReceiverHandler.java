@@ -4,11 +4,12 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.*;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.BHttpConnectionBase;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.cleanas2.message.IncomingMessage;
 import org.cleanas2.service.CertificateService;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
 import org.cleanas2.service.net.processor.AsyncMdnProcessor;
 import org.cleanas2.service.net.util.*;
 
@@ -31,10 +32,12 @@ public class AsyncMdnReceiverHandler implements HttpRequestHandler {
 
     private static final Log logger = LogFactory.getLog(AsyncMdnReceiverHandler.class.getSimpleName());
     private final CertificateService certs;
+    private final ServerConfiguration config;
 
     @Inject
-    public AsyncMdnReceiverHandler(CertificateService certs) {
+    public AsyncMdnReceiverHandler(CertificateService certs, ServerConfiguration config) {
         this.certs = certs;
+        this.config = config;
     }
 
     private void validateRequestFormat(HttpRequest request) throws HttpException {
@@ -65,7 +68,7 @@ public class AsyncMdnReceiverHandler implements HttpRequestHandler {
     public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
         logger.info("handler invoked");
 
-        BHttpConnectionBase connection = (BHttpConnectionBase) context.getAttribute("connection");
+        HttpInetConnection connection = (HttpInetConnection) context.getAttribute("connection");
 
         IncomingMessage msg = new IncomingMessage(connection, request);
 
@@ -78,7 +81,8 @@ public class AsyncMdnReceiverHandler implements HttpRequestHandler {
 
         try {
             //E2ELogUtil.mdnAsyncReceiveStart(as2msg);
-            MimeBodyPart mimeData = MimeUtil.fromHttpRequest((HttpEntityEnclosingRequest) request);
+            MimeBodyPart mimeData = MimeUtil.fromHttpRequest((HttpEntityEnclosingRequest) request,
+                    config.getDirectory(SystemDir.Temp), config.getSpoolThreshold());
 
             if (MimeUtil.isSigned(mimeData)) {
                 X509Certificate senderCert = certs.getCertificate(msg.senderId);
@@ -102,6 +106,7 @@ public class AsyncMdnReceiverHandler implements HttpRequestHandler {
             response.setEntity(new StringEntity(e.getMessage()));
             logger.debug("Encryption/Security related exception", e);
         } finally {
+            PayloadBuffer.release(request);
             logger.debug("MDN Receipt Finished");
             //E2ELogUtil.mdnReceiveEnd(as2msg);
         }
@@ -3,6 +3,8 @@ package org.cleanas2.service.net;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.cleanas2.server.ServerSession;
 import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.ServerThreads;
 import org.cleanas2.service.net.http.HttpReceiverServiceBase;
 
 import javax.inject.Inject;
@@ -18,7 +20,8 @@ public class AsyncMdnReceiverService extends HttpReceiverServiceBase {
     private final int port;
 
     @Inject
-    public AsyncMdnReceiverService(JsonConfigMap options) throws Exception {
+    public AsyncMdnReceiverService(JsonConfigMap options, ServerThreads threads, ServerConfiguration config) throws Exception {
+        super(options, threads, config);
         port = options.getSection("server.ports").getInt("receiveMdn");
     }
 
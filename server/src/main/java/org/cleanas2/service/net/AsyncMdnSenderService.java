@@ -10,13 +10,12 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 import org.cleanas2.bus.SendAsyncMdnMsg;
 import org.cleanas2.common.exception.AS2Exception;
 import org.cleanas2.message.ReplyMdn;
 import org.cleanas2.service.CertificateService;
+import org.cleanas2.service.ServerThreads;
 import org.cleanas2.service.net.util.MdnUtil;
 import org.cleanas2.service.net.util.MimeUtil;
 import org.cleanas2.service.net.util.NetUtil;
@@ -26,6 +25,7 @@ import javax.inject.Inject;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeBodyPart;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 
 import static org.boon.Maps.map;
 
@@ -41,18 +41,36 @@ public class AsyncMdnSenderService {
 
     private static final Log logger = LogFactory.getLog(AsyncMdnSenderService.class.getSimpleName());
     private final CertificateService certs;
+    private final ExecutorService sendExecutor;
+    private final HttpClientService http;
 
     @Inject
-    public AsyncMdnSenderService(CertificateService certs) {
+    public AsyncMdnSenderService(CertificateService certs, ServerThreads threads, HttpClientService http) {
         this.certs = certs;
+        this.http = http;
+        // with virtual threads, don't hold up the bus dispatcher while the partner's server answers
+        this.sendExecutor = threads.isVirtual() ? threads.newThreadPerTaskExecutor("mdn-send") : null;
     }
 
     @Handler
-    public void sendAsyncMdn(SendAsyncMdnMsg busMessage) {
+    public void sendAsyncMdn(final SendAsyncMdnMsg busMessage) {
+        if (sendExecutor == null) {
+            sendMdn(busMessage.mdn);
+        } else {
+            sendExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendMdn(busMessage.mdn);
+                }
+            });
+        }
+    }
+
+    private void sendMdn(ReplyMdn mdn) {
         try {
             logger.info("Starting to send Async MDN");
             // E2ELogUtil.mdnAsyncSendStart(as2message);
-            send(busMessage.mdn);
+            send(mdn);
             logger.debug("Async MDN - Sent Successfully");
         } catch (Exception e) {
             logger.info("Error sending async MDN", e);
@@ -65,48 +83,46 @@ public class AsyncMdnSenderService {
 
     private void send(final ReplyMdn mdn) throws AS2Exception, IOException, MessagingException {
 
-        try (CloseableHttpClient client = HttpClients.createMinimal()) {
-            // this code is the same as the code in the FileReceiverHandler.  Should it be merged somehow?
-
-            MimeBodyPart outBody = MdnUtil.createMdnMimeData(mdn);
-            if (mdn.isSignedReply) {
-                try {
-                    outBody = MimeUtil.signBodyPart(
-                            outBody,
-                            certs.getCertificate(mdn.companyId),
-                            certs.getPrivateKey(mdn.companyId),
-                            mdn.signedReceiptMicAlgorithm
-                    );
-                } catch (Exception e) {
-                    // this also cached any GeneralCertificateExceptions raised by not finding
-                    // the certificate/key for the company
-                    logger.error("Error signing MDN for received file, sending unsigned", e);
-                    // todo? retry? send other MDN? not clear
-                }
+        // this code is the same as the code in the FileReceiverHandler.  Should it be merged somehow?
+
+        MimeBodyPart outBody = MdnUtil.createMdnMimeData(mdn);
+        if (mdn.isSignedReply) {
+            try {
+                outBody = MimeUtil.signBodyPart(
+                        outBody,
+                        certs.getCertificate(mdn.companyId),
+                        certs.getPrivateKey(mdn.companyId),
+                        mdn.signedReceiptMicAlgorithm
+                );
+            } catch (Exception e) {
+                // this also cached any GeneralCertificateExceptions raised by not finding
+                // the certificate/key for the company
+                logger.error("Error signing MDN for received file, sending unsigned", e);
+                // todo? retry? send other MDN? not clear
             }
+        }
 
-            // PREPARE THE POST AND DEBUG THE STATUS     -------------------------------------------------
-            final HttpPost post = new HttpPost(mdn.asyncReplyToUrl);
-            post.setHeaders(NetUtil.mapToHttpHeaders(mdn.responseHeaders));
-            post.setHeader("Content-Type", outBody.getContentType());
-            post.setEntity(new ByteArrayEntity(IOUtils.toByteArray(outBody.getInputStream())));
+        // PREPARE THE POST AND DEBUG THE STATUS     -------------------------------------------------
+        final HttpPost post = new HttpPost(mdn.asyncReplyToUrl);
+        post.setHeaders(NetUtil.mapToHttpHeaders(mdn.responseHeaders));
+        post.setHeader("Content-Type", outBody.getContentType());
+        post.setEntity(new ByteArrayEntity(IOUtils.toByteArray(outBody.getInputStream())));
 
-            DebugUtil.debugPrintObject(logger, "Async MDN - POST prepared", map(
-                    "bytes", post.getEntity().getContentLength(),
-                    "url", post.getURI().toString(),
-                    "content type", post.getFirstHeader("Content-Type"),
-                    "original message id", mdn.attributes.originalMessageId
-            ));
+        DebugUtil.debugPrintObject(logger, "Async MDN - POST prepared", map(
+                "bytes", post.getEntity().getContentLength(),
+                "url", post.getURI().toString(),
+                "content type", post.getFirstHeader("Content-Type"),
+                "original message id", mdn.attributes.originalMessageId
+        ));
 
-            // EXECUTE THE ACTUAL POST -------------------------------------------------------------------
-            try {
-                client.execute(post, new AsyncMdnResponseHandler(mdn, post));
-            } catch (ClientProtocolException ex) {
-                // todo: resend if a network error occurs during transmission?
-                logger.debug("error sending async mdn");
-                //E2ELogUtil.mdnAsyncSendError(mdn, ex, "Http Response Error");
-                throw ex;
-            }
+        // EXECUTE THE ACTUAL POST -------------------------------------------------------------------
+        try {
+            http.getClient().execute(post, new AsyncMdnResponseHandler(mdn, post));
+        } catch (ClientProtocolException ex) {
+            // todo: resend if a network error occurs during transmission?
+            logger.debug("error sending async mdn");
+            //E2ELogUtil.mdnAsyncSendError(mdn, ex, "Http Response Error");
+            throw ex;
         }
     }
 
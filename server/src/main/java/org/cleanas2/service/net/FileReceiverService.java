@@ -2,6 +2,8 @@ package org.cleanas2.service.net;
 
 import org.apache.http.protocol.HttpRequestHandler;
 import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.ServerThreads;
 import org.cleanas2.service.net.http.HttpReceiverServiceBase;
 
 import javax.inject.Inject;
@@ -16,7 +18,8 @@ public class FileReceiverService extends HttpReceiverServiceBase {
     private final int port;
 
     @Inject
-    public FileReceiverService(JsonConfigMap options) throws Exception {
+    public FileReceiverService(JsonConfigMap options, ServerThreads threads, ServerConfiguration config) throws Exception {
+        super(options, threads, config);
         port = options.getSection("server.ports").getInt("receiveFile");
     }
 
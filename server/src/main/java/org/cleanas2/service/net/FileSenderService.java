@@ -3,52 +3,215 @@ package org.cleanas2.service.net;
 import net.engio.mbassy.listener.Handler;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.cleanas2.bus.BroadcastFileMsg;
+import org.cleanas2.bus.MessageBase;
+import org.cleanas2.bus.PrepareFileMsg;
 import org.cleanas2.bus.SendFileMsg;
+import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.common.disposition.DispositionOptions;
+import org.cleanas2.common.exception.AS2Exception;
 import org.cleanas2.common.serverEvent.Phase;
+import org.cleanas2.common.service.StoppableService;
+import org.cleanas2.message.OutgoingFileMessage;
 import org.cleanas2.pipeline.FailureTask;
 import org.cleanas2.pipeline.ServerEventEmitter;
+import org.cleanas2.service.PartnerService;
 import org.cleanas2.service.net.pipelines.fileSend.*;
 import org.cleanas2.pipeline.Pipeline;
 
 import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class FileSenderService {
+/**
+ * Sends files.  The work is split in two: preparing the message (read, sign, encrypt, write the payload) and
+ * transmitting it (post it, wait for the MDN).  A SendFileMsg on its own does both.  If a PrepareFileMsg for
+ * the same message came first, the prepared payload is kept here and the SendFileMsg only transmits it, so
+ * the next file can be prepared while the partner is still answering the last one.
+ * <p/>
+ * A BroadcastFileMsg reads and signs a file once for many partners.  Partners whose send settings would give
+ * the same signed content (content type, encoding, compression, signature and MIC algorithms) share one copy, and their
+ * PrepareFileMsg only encrypts it.
+ */
+@Singleton
+public class FileSenderService implements StoppableService {
 
     private static final Log logger = LogFactory.getLog(FileSenderService.class.getSimpleName());
+    private final Map<OutgoingFileMessage, Context> prepared = new ConcurrentHashMap<>();
+    private final PartnerService partners;
 
     @Inject
-    public FileSenderService() {
+    public FileSenderService(PartnerService partners) {
+        this.partners = partners;
     }
 
     @Handler
-    public void handleSendFile(final SendFileMsg busMessage) throws Exception {
+    public void handleBroadcastFile(final BroadcastFileMsg busMessage) throws Exception {
+        for (final List<String> group : groupBySignedContent(busMessage.receiverIds)) {
+            Context context = new Context(new OutgoingFileMessage(busMessage.file, busMessage.senderId, group.get(0)));
+
+            Pipeline<Context> p = new Pipeline<>();
+            p.step(
+                    CreateMimeBodyPart.class,
+                    SignBroadcastContent.class
+            );
+            p.fail(new FailureTask<Context>() {
+                @Override
+                public void process(Context ctx, Exception e) {
+                    logger.error("Error signing broadcast file " + busMessage.file + " for " + group, e);
+                }
+            });
+            p.run(context);
+            if (context.broadcast == null) {
+                continue;
+            }
+
+            // one use for each partner, and then give up the one we got when it was created
+            context.broadcast.retain(group.size());
+            for (String receiverId : group) {
+                busMessage.content.put(receiverId, context.broadcast);
+            }
+            context.broadcast.release();
+        }
+        if (busMessage.content.isEmpty()) {
+            busMessage.setErrorCause(new AS2Exception("Broadcast file could not be signed for any partner: " + busMessage.file));
+        }
+    }
+
+    /**
+     * Groups the receivers that can share the same signed content.  Partners we do not know are left out.
+     */
+    private Collection<List<String>> groupBySignedContent(List<String> receiverIds) throws AS2Exception {
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        for (String receiverId : receiverIds) {
+            PartnerRecord p = partners.getPartner(receiverId);
+            if (p == null) {
+                logger.error("Not broadcasting to unknown partner: " + receiverId);
+                continue;
+            }
+            PartnerRecord.SendSettings s = p.sendSettings;
+            String key = String.format("%s|%s|%s|%s|%s", s.contentType, s.transferEncoding,
+                    p.shouldSign() ? s.signAlgorithm : "", new DispositionOptions(s.mdnOptions).micAlgorithm,
+                    p.shouldCompress() ? p.compressBeforeSigning() : "");
+            List<String> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(receiverId);
+        }
+        return groups.values();
+    }
+
+    @Handler
+    public void handlePrepareFile(final PrepareFileMsg busMessage) throws Exception {
         Context context = new Context(busMessage.as2message);
+        context.broadcast = busMessage.broadcast;
         ServerEventEmitter<Context> fileSendEvent = new FileSendEmitter(context);
 
         Pipeline<Context> p = new Pipeline<>();
-        p.step(fileSendEvent.Info("Starting to send file"));
+        p.step(fileSendEvent.Info("Preparing file to send"));
+        if (context.broadcast == null) {
+            p.step(CreateMimeBodyPart.class);
+        }
         p.step(
-                CreateMimeBodyPart.class,
                 EncryptMimeBodyPart.class,
-                ValidateMessage.class,
+                WritePayload.class,
+                ValidateMessage.class
+        );
+        p.fail(fileSendEvent.Error("Error Preparing File"));
+        p.fail(new ReportFailure(busMessage));
+        p.fail(new DeletePayload());
+
+        p.run(context);
+        if (!busMessage.isError()) {
+            prepared.put(busMessage.as2message, context);
+        }
+    }
+
+    @Handler
+    public void handleSendFile(final SendFileMsg busMessage) throws Exception {
+        Context context = prepared.remove(busMessage.as2message);
+        boolean isPrepared = context != null;
+        if (!isPrepared) {
+            context = new Context(busMessage.as2message);
+        }
+        ServerEventEmitter<Context> fileSendEvent = new FileSendEmitter(context);
+
+        Pipeline<Context> p = new Pipeline<>();
+        p.step(fileSendEvent.Info("Starting to send file"));
+        if (!isPrepared) {
+            p.step(
+                    CreateMimeBodyPart.class,
+                    EncryptMimeBodyPart.class,
+                    WritePayload.class,
+                    ValidateMessage.class
+            );
+        }
+        p.step(
                 SendFile.class,
                 ReceiveMdn.class
         );
         p.done(CleanupAndPostProcess.class);
         p.done(fileSendEvent.Info("File Send Finished"));
         p.fail(fileSendEvent.Error("Error Sending File"));
+        p.fail(new ReportFailure(busMessage));
         p.fail(new FailureTask<Context>() {
             @Override
             public void process(Context ctx, Exception e) {
-                // we could also just stick the bus message in the context if we want?
-                busMessage.setError(true);
-                busMessage.setErrorCause(e);
+                busMessage.partnerUnreachable = ctx.unreachable;
             }
         });
 
         p.run(context);
     }
 
+    /**
+     * Deletes the payloads of any files that were prepared but never sent
+     */
+    @Override
+    public void stop() {
+        for (Context ctx : prepared.values()) {
+            releasePayload(ctx);
+        }
+        prepared.clear();
+    }
+
+    private static class ReportFailure implements FailureTask<Context> {
+        private final MessageBase busMessage;
+
+        ReportFailure(MessageBase busMessage) {
+            this.busMessage = busMessage;
+        }
+
+        @Override
+        public void process(Context ctx, Exception e) {
+            // we could also just stick the bus message in the context if we want?
+            busMessage.setError(true);
+            busMessage.setErrorCause(e);
+        }
+    }
+
+    /**
+     * A prepare that failed part way may have left a payload on disk, and nobody will send it
+     */
+    private static class DeletePayload implements FailureTask<Context> {
+        @Override
+        public void process(Context ctx, Exception e) {
+            releasePayload(ctx);
+        }
+    }
+
+    private static void releasePayload(Context ctx) {
+        if (ctx.payload != null) {
+            ctx.payload.close();
+        }
+        if (ctx.broadcast != null) {
+            ctx.broadcast.release();
+        }
+    }
+
     private class FileSendEmitter extends ServerEventEmitter<Context> {
         public FileSendEmitter(Context context) {
             super(Phase.FILE_SEND, context);
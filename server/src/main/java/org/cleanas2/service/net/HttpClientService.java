@@ -0,0 +1,146 @@
+package org.cleanas2.service.net;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.common.service.AdminDump;
+import org.cleanas2.common.service.ConfigurableService;
+import org.cleanas2.common.service.StoppableService;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.PartnerService;
+import org.cleanas2.util.NamedThreadFactory;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one HTTP client used to send files and async MDNs to partners.  Connections are pooled per partner
+ * URL (host + port), and kept open between messages so a busy partner does not pay for a new connection (and
+ * TLS handshake) on every file.  Settings are read from the optional "server.client" section:
+ * <pre>
+ * "client": {
+ *     "maxConnections": 100,           // open connections to all partners together
+ *     "maxConnectionsPerPartner": 4,   // default for each partner, can be set per partner in "sendSettings"
+ *     "idleTimeout": 60                // seconds an unused connection stays in the pool
+ * }
+ * </pre>
+ * Whoever executes a request must read (or close) the response, or the connection is never given back to the pool.
+ */
+@Singleton
+public class HttpClientService implements ConfigurableService, StoppableService, AdminDump {
+
+    private static final Log logger = LogFactory.getLog(HttpClientService.class.getSimpleName());
+    private static final long EVICT_INTERVAL = 30;  // seconds
+
+    private final PartnerService partners;
+    private final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("http-client-evictor"));
+    private final CloseableHttpClient client;
+    private final int idleTimeout;
+    private final Map<String, HttpRoute> routes = new LinkedHashMap<>();
+
+    @Inject
+    public HttpClientService(JsonConfigMap options, PartnerService partners) throws Exception {
+        this.partners = partners;
+
+        JsonConfigMap server = options.getSection("server", true);
+        JsonConfigMap settings = server.hasSection("client")
+                ? server.getSection("client")
+                : new JsonConfigMap(server.formatName("client"), new HashMap<String, Object>());
+
+        this.idleTimeout = settings.getOrDefault("idleTimeout", 60);
+        connections.setMaxTotal(settings.getOrDefault("maxConnections", 100));
+        connections.setDefaultMaxPerRoute(settings.getOrDefault("maxConnectionsPerPartner", 4));
+
+        this.client = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setKeepAliveStrategy(new IdleLimitedKeepAlive())
+                .build();
+    }
+
+    @Override
+    public void initialize() throws Exception {
+        for (PartnerRecord p : partners.getAllPartners()) {
+            if (p.sendSettings.url == null) continue;
+            HttpRoute route = routeFor(p.sendSettings.url);
+            routes.put(p.as2id, route);
+            if (p.sendSettings.maxConnections > 0) {
+                connections.setMaxPerRoute(route, p.sendSettings.maxConnections);
+            }
+        }
+
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connections.closeExpiredConnections();
+                connections.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+            }
+        }, EVICT_INTERVAL, EVICT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * The route the client will use for this url (when there is no proxy), so per-partner limits match it
+     */
+    private static HttpRoute routeFor(String url) throws IOException {
+        URL u = new URL(url);
+        boolean secure = "https".equalsIgnoreCase(u.getProtocol());
+        int port = u.getPort() > 0 ? u.getPort() : u.getDefaultPort();
+        return new HttpRoute(new HttpHost(u.getHost(), port, u.getProtocol()), null, secure);
+    }
+
+    @Override
+    public void stop() {
+        evictor.shutdownNow();
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.error("Error closing the http client", e);
+        }
+    }
+
+    @Override
+    public List<String> dumpCurrentStatus() {
+        List<String> items = new ArrayList<>();
+        PoolStats total = connections.getTotalStats();
+        items.add(String.format("connections = %d leased, %d idle, %d waiting (max %d)",
+                total.getLeased(), total.getAvailable(), total.getPending(), total.getMax()));
+        for (Map.Entry<String, HttpRoute> e : routes.entrySet()) {
+            PoolStats s = connections.getStats(e.getValue());
+            items.add(String.format("    %s (%s) = %d leased, %d idle (max %d)",
+                    e.getKey(), e.getValue().getTargetHost(), s.getLeased(), s.getAvailable(), s.getMax()));
+        }
+        return items;
+    }
+
+    /**
+     * Keeps a connection for as long as the partner's Keep-Alive header says, but never longer than our idle timeout
+     */
+    private class IdleLimitedKeepAlive implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long partner = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            long ours = idleTimeout * 1000L;
+            return (partner > 0 && partner < ours) ? partner : ours;
+        }
+    }
+}
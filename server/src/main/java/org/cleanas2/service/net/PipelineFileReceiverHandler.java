@@ -1,9 +1,9 @@
 package org.cleanas2.service.net;
 
 import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.impl.DefaultBHttpServerConnection;
 import org.apache.http.protocol.HttpContext;
 import org.apache.http.protocol.HttpRequestHandler;
 import org.cleanas2.common.serverEvent.Phase;
@@ -20,7 +20,7 @@ public class PipelineFileReceiverHandler implements HttpRequestHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
         try {
-            DefaultBHttpServerConnection connection = (DefaultBHttpServerConnection) context.getAttribute("connection");
+            HttpInetConnection connection = (HttpInetConnection) context.getAttribute("connection");
             IncomingMessage msg = new IncomingMessage(connection, request);
             RunPipeline(request, response, context, connection, msg);
         } catch (Exception e) {
@@ -28,7 +28,7 @@ public class PipelineFileReceiverHandler implements HttpRequestHandler {
         }
     }
 
-    private void RunPipeline(HttpRequest request, HttpResponse response, HttpContext context, DefaultBHttpServerConnection connection, IncomingMessage msg) throws Exception {
+    private void RunPipeline(HttpRequest request, HttpResponse response, HttpContext context, HttpInetConnection connection, IncomingMessage msg) throws Exception {
         Context ctx = new Context(msg, request, response, context, connection);
         FileSendEvent evt = new FileSendEvent(ctx);
         Pipeline<Context> p = new Pipeline<>();
@@ -40,7 +40,11 @@ public class PipelineFileReceiverHandler implements HttpRequestHandler {
         p.done(evt.Info("File receive finished"));
         p.fail(SetResponseError.class);
         p.fail(evt.Error("Error sending file"));
-        p.run(ctx);
+        try {
+            p.run(ctx);
+        } finally {
+            ctx.releasePayloads();
+        }
     }
 
     public static class FileSendEvent extends ServerEventEmitter<Context> {
@@ -2,10 +2,15 @@ package org.cleanas2.service.net.http;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.protocol.*;
 import org.cleanas2.common.service.AdminDump;
 import org.cleanas2.common.service.ConfigurableService;
 import org.cleanas2.common.service.StoppableService;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.ServerThreads;
 import org.cleanas2.util.Constants;
 
 import java.io.IOException;
@@ -18,23 +23,48 @@ import java.util.List;
  * The class controls the creation of a HTTP server that listens on the specified port.  All
  * incoming connections are passed to the custom handler, and all protocol details are handled
  * by the server.  The handlers only need to read from / write to the request when appropriate.
+ * <p/>
+ * Which engine accepts the connections (thread per connection, or NIO) is chosen by the "engine"
+ * setting in the "server.ports" section, see HttpReceiverSettings.  The requests are processed on
+ * platform or virtual threads depending on "server.threads", see ServerThreads.
  *
  * @author Andrew Backer {@literal awbacker@gmail.com / andrew.backer@powere2e.com}
  */
 public abstract class HttpReceiverServiceBase implements AdminDump, ConfigurableService, StoppableService {
 
     private static final Log logger = LogFactory.getLog(HttpReceiverServiceBase.class.getSimpleName());
-    private HttpServiceManagerThread serviceManager;
+    private final HttpReceiverSettings settings;
+    private final ServerThreads threads;
+    private final ServerConfiguration config;
+    private ReceiveEngine serviceManager;
+
+    protected HttpReceiverServiceBase(JsonConfigMap options, ServerThreads threads, ServerConfiguration config) throws Exception {
+        this.settings = new HttpReceiverSettings(options.getSection("server.ports"), threads.isVirtual());
+        this.threads = threads;
+        this.config = config;
+    }
 
     @Override
     public void initialize() throws Exception {
         try {
 
+            ReceiveWorkerPool workers = new ReceiveWorkerPool(settings, threads.newThreadFactory(this.getClass().getSimpleName() + "-worker"));
+            KeepAlivePolicy keepAlive = new KeepAlivePolicy(settings, workers);
             HttpProcessor httpProc = HttpProcessorBuilder.create()
+                    .add((HttpRequestInterceptor) keepAlive)
                     .add(new ResponseDate())
                     .add(new ResponseServer(Constants.AS2_SERVER_SENDER_NAME))
                     .add(new ResponseContent())
-                    .add(new ResponseConnControl()).build();
+                    .add(new ResponseConnControl())
+                    .add((HttpResponseInterceptor) keepAlive).build();
+
+            logger.info(String.format("Starting %s on %d (%s, %s threads)", this.getClass().getSimpleName(), getPort(), settings.engine, threads.getMode()));
+
+            if (settings.isNio()) {
+                serviceManager = new NioHttpServiceManager(this, getPort(), httpProc, getHttpRequestHandler(), settings, workers, config);
+                serviceManager.startEngine();
+                return;
+            }
 
             UriHttpRequestHandlerMapper mappings = new UriHttpRequestHandlerMapper();
 
@@ -47,11 +77,8 @@ public abstract class HttpReceiverServiceBase implements AdminDump, Configurable
             // the thread that manages this HttpService will create the socket, etc
             HttpService httpService = new HttpService(httpProc, mappings);
 
-            logger.info(String.format("Starting %s on %d", this.getClass().getSimpleName(), getPort()));
-
-            serviceManager = new HttpServiceManagerThread(this, getPort(), httpService, null);
-            serviceManager.setDaemon(true);
-            serviceManager.start();
+            serviceManager = new HttpServiceManagerThread(this, getPort(), httpService, null, workers);
+            serviceManager.startEngine();
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -67,7 +94,7 @@ public abstract class HttpReceiverServiceBase implements AdminDump, Configurable
 
     @Override
     public void stop() {
-        serviceManager.interrupt();
+        serviceManager.stopEngine();
     }
 
     @Override
@@ -0,0 +1,60 @@
+package org.cleanas2.service.net.http;
+
+import org.cleanas2.config.json.JsonConfigMap;
+
+/**
+ * Settings shared by all the HTTP listeners, read from the "server.ports" section of the config
+ * file.  Only the port numbers themselves are required (and read by the services), everything
+ * here has a default:
+ * <pre>
+ * "ports": {
+ *     "receiveFile": 10090,
+ *     "receiveMdn": 10091,
+ *     "engine": "nio",         // "blocking" (default) = thread per connection, "nio" = event loop
+ *     "ioThreads": 2,          // nio only: number of selector threads
+ *     "workerThreads": 16,     // threads that run the handlers (decrypt, save, mdn), default 2 per cpu
+ *                              // or 10000 when "server.threads" is "virtual"
+ *     "queueSize": 100,        // requests that may wait for a worker before we answer "503 busy"
+ *     "retryAfter": 60,        // seconds, sent in the Retry-After header of the 503
+ *     "keepAlive": false,      // false = close the connection after every request.  default is true for "nio"
+ *                              // and false for "blocking", where an idle connection ties up a worker
+ *     "keepAliveTimeout": 15,  // seconds an idle connection is kept open waiting for the next request
+ *     "maxKeepAliveRequests": 100  // requests on one connection before we close it
+ * }
+ * </pre>
+ */
+class HttpReceiverSettings {
+
+    static final String ENGINE_BLOCKING = "blocking";
+    static final String ENGINE_NIO = "nio";
+
+    final String engine;
+    final int ioThreads;
+    final int workerThreads;
+    final int queueSize;
+    final int retryAfter;
+    final boolean keepAlive;
+    final int keepAliveTimeout;
+    final int maxKeepAliveRequests;
+
+    HttpReceiverSettings(JsonConfigMap ports, boolean virtualThreads) throws Exception {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        this.engine = ports.getOrDefault("engine", ENGINE_BLOCKING).toLowerCase();
+        this.ioThreads = ports.getOrDefault("ioThreads", Math.max(1, cpus / 2));
+        this.workerThreads = ports.getOrDefault("workerThreads", virtualThreads ? 10000 : cpus * 2);
+        this.queueSize = ports.getOrDefault("queueSize", 100);
+        this.retryAfter = ports.getOrDefault("retryAfter", 60);
+        this.keepAlive = ports.getOrDefault("keepAlive", ENGINE_NIO.equals(engine));
+        this.keepAliveTimeout = ports.getOrDefault("keepAliveTimeout", 15);
+        this.maxKeepAliveRequests = ports.getOrDefault("maxKeepAliveRequests", 100);
+
+        if (!ENGINE_BLOCKING.equals(engine) && !ENGINE_NIO.equals(engine)) {
+            throw new Exception(String.format("Unknown receive engine \"%s\" in \"%s\", must be '%s' or '%s'",
+                    engine, ports.formatName("engine"), ENGINE_BLOCKING, ENGINE_NIO));
+        }
+    }
+
+    boolean isNio() {
+        return ENGINE_NIO.equals(engine);
+    }
+}
@@ -12,15 +12,16 @@ import org.apache.http.protocol.HttpService;
 import org.cleanas2.service.net.util.NetUtil;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 
 /**
- * A thread that is spawned each time an request comes in.  It's main job is to set up the
+ * The work that is queued on the worker pool each time a connection comes in.  It's main job is to set up the
  * context for the handler, then pass that to the server to do the http processing (headers/protocol/etc)
  * which will then create an instance of the configured handler thread (e.g. AS2IncomingFileTransferHandler)
  *
  * @author Andrew Backer {@literal awbacker@gmail.com / andrew.backer@powere2e.com}
  */
-public class HttpRequestHandlerThread extends Thread {
+public class HttpRequestHandlerThread implements Runnable {
 
     private static final Log logger = LogFactory.getLog(HttpRequestHandlerThread.class.getSimpleName());
     private final HttpService httpService;
@@ -29,7 +30,6 @@ public class HttpRequestHandlerThread extends Thread {
     private final HttpReceiverServiceBase ownerModule;
 
     public HttpRequestHandlerThread(final HttpService httpService, final HttpServerConnection conn, HttpReceiverServiceBase ownerModule) {
-        super();
         this.httpService = httpService;
         this.ownerModule = ownerModule;
         this.conn = (DefaultBHttpServerConnection) conn;
@@ -41,6 +41,7 @@ public class HttpRequestHandlerThread extends Thread {
         while (!Thread.interrupted() && this.conn.isOpen()) {
             /* have the service create a handler and pass it the processed request/response/context */
             context.setAttribute("connection", conn);
+            // the HttpService closes the connection when the response says "Connection: close" (see KeepAlivePolicy)
             this.httpService.handleRequest(this.conn, context);
         }
     }
@@ -55,7 +56,10 @@ public class HttpRequestHandlerThread extends Thread {
             logger.info("request handler thread started, processing");
             processConnection();
         } catch (ConnectionClosedException ex) {
-            logger.error(getMessage("Client closed connection", ex), ex);
+            // normal end of a keep-alive connection
+            logger.debug(getMessage("Client closed connection", ex));
+        } catch (SocketTimeoutException ex) {
+            logger.debug(getMessage("Idle connection timed out", ex));
         } catch (IOException ex) {
             logger.error(getMessage("I/O error", ex), ex);
         } catch (HttpException ex) {
@@ -2,13 +2,13 @@ package org.cleanas2.service.net.http;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.http.HttpConnectionFactory;
-import org.apache.http.HttpServerConnection;
+import org.apache.http.*;
 import org.apache.http.impl.DefaultBHttpServerConnection;
 import org.apache.http.impl.DefaultBHttpServerConnectionFactory;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.protocol.HttpService;
-import org.cleanas2.common.service.AdminDump;
 import org.cleanas2.service.net.util.NetUtil;
+import org.cleanas2.util.NamedThreadFactory;
 
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
@@ -16,29 +16,59 @@ import java.io.InterruptedIOException;
 import java.net.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A Persistent thread that runs the HTTP server and accepts connections on a socket
+ * A Persistent thread that runs the HTTP server and accepts connections on a socket.  Each connection
+ * is queued on the bounded worker pool.  When the pool is full the request headers are read, and the
+ * partner gets a "503 busy" reply straight away without us reading the body.  That is done by a couple of
+ * "reject" threads, so a slow client can't hold up the accept loop, and if even those are backed up the
+ * connection is just closed.
  *
  * @author Andrew Backer {@literal awbacker@gmail.com / andrew.backer@powere2e.com}
  */
-class HttpServiceManagerThread extends Thread implements AdminDump {
+class HttpServiceManagerThread extends Thread implements ReceiveEngine {
 
     private static final Log logger = LogFactory.getLog(HttpServiceManagerThread.class.getSimpleName());
+    private static final int REJECT_READ_TIMEOUT = 2 * 1000; // don't let a slow client hold up a reject thread
+    private static final int REJECT_THREADS = 2;
+    private static final int REJECT_QUEUE = 50;
     private final HttpConnectionFactory<DefaultBHttpServerConnection> connFactory;
 
     private final ServerSocket serverSocket;
     private final HttpService httpService;
     private final HttpReceiverServiceBase ownerModule;
+    private final ReceiveWorkerPool workers;
+    private final ThreadPoolExecutor rejecter;
 
-    public HttpServiceManagerThread(HttpReceiverServiceBase module, final int port, final HttpService httpService, final ServerSocketFactory sf) throws IOException {
+    public HttpServiceManagerThread(HttpReceiverServiceBase module, final int port, final HttpService httpService, final ServerSocketFactory sf, ReceiveWorkerPool workers) throws IOException {
         this.connFactory = DefaultBHttpServerConnectionFactory.INSTANCE;
         this.serverSocket = sf != null ? sf.createServerSocket(port) : new ServerSocket(port);
         this.httpService = httpService;
         this.ownerModule = module;
+        this.workers = workers;
+        this.rejecter = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REJECT_QUEUE), new NamedThreadFactory("http-reject"));
+        this.rejecter.allowCoreThreadTimeOut(true);
         this.serverSocket.setSoTimeout(30 * 1000); // 30 second timeout
     }
 
+    @Override
+    public void startEngine() {
+        setDaemon(true);
+        start();
+    }
+
+    @Override
+    public void stopEngine() {
+        interrupt();
+        workers.shutdown();
+        rejecter.shutdownNow();
+    }
+
     @Override
     public void run() {
         while (!Thread.interrupted()) {
@@ -49,9 +79,9 @@ class HttpServiceManagerThread extends Thread implements AdminDump {
 
                 // converts the socket request into an HTTP connection
                 HttpServerConnection conn = this.connFactory.createConnection(socket);
-                Thread t = new HttpRequestHandlerThread(this.httpService, conn, this.ownerModule);
-                t.setDaemon(true);
-                t.start();
+                if (!workers.tryExecute(new HttpRequestHandlerThread(this.httpService, conn, this.ownerModule))) {
+                    rejectLater(conn, socket);
+                }
             } catch (SocketTimeoutException ignored) {
                 // ignore and keep looping
             } catch (InterruptedIOException ignored) {
@@ -70,6 +100,50 @@ class HttpServiceManagerThread extends Thread implements AdminDump {
     }
 
 
+    /**
+     * Hands the busy response to the reject threads.  When they are backed up too, the connection is closed
+     * without an answer, the partner will treat it like any other failed connection and try again later
+     */
+    private void rejectLater(final HttpServerConnection conn, final Socket socket) {
+        try {
+            rejecter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    rejectConnection(conn, socket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.info("worker pool is full and busy responses are backed up, closing " + NetUtil.getClientInfo(socket));
+            try {
+                conn.shutdown();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Reads just the request headers, then sends the 503 busy response and closes the connection
+     */
+    private void rejectConnection(HttpServerConnection conn, Socket socket) {
+        logger.info("worker pool is full, sending 503 to " + NetUtil.getClientInfo(socket));
+        try {
+            conn.setSocketTimeout(REJECT_READ_TIMEOUT);
+            conn.receiveRequestHeader();
+            HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, "Service Unavailable");
+            workers.setBusyResponse(response);
+            conn.sendResponseHeader(response);
+            conn.sendResponseEntity(response);
+            conn.flush();
+        } catch (IOException | HttpException e) {
+            logger.debug("Error sending busy response: " + e.getMessage());
+        } finally {
+            try {
+                conn.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
     @Override
     public void interrupt() {
         super.interrupt();
@@ -86,8 +160,11 @@ class HttpServiceManagerThread extends Thread implements AdminDump {
     public List<String> dumpCurrentStatus() {
         List<String> messages = new ArrayList<>();
         messages.add("listening on port  = " + serverSocket.getLocalPort());
+        messages.add("engine             = " + HttpReceiverSettings.ENGINE_BLOCKING);
         messages.add("http service       = " + httpService.getClass().getSimpleName());
         messages.add("connection factory = " + connFactory.getClass().getSimpleName());
+        messages.addAll(workers.dumpCurrentStatus());
+        messages.add("busy replies       = " + rejecter.getQueue().size() + " / " + REJECT_QUEUE);
         return messages;
     }
 }
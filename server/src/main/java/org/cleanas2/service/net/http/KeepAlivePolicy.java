@@ -0,0 +1,60 @@
+package org.cleanas2.service.net.http;
+
+import org.apache.http.*;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+/**
+ * Decides if a connection is kept open after a response, for both receive engines.  Runs after
+ * ResponseConnControl, so a "Connection: close" that is already on the response (the client asked
+ * for it, or the request failed) is left alone.  Otherwise the connection is closed once it has
+ * served "maxKeepAliveRequests" requests, or kept open with a "Keep-Alive" header telling the
+ * partner how long we will wait for the next one.
+ * <p/>
+ * The idle wait is done with the socket timeout: it is set to the keep-alive timeout after each
+ * response, and back to the normal read timeout when the next request arrives.
+ * <p/>
+ * On the blocking engine a worker sits on the connection while it is idle, so when there are requests
+ * waiting for a worker we answer "Connection: close" instead.  A connection is only ever closed by us
+ * after saying so, or after the idle time we told the partner about.
+ */
+class KeepAlivePolicy implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    static final int READ_TIMEOUT = 30 * 1000;
+    private final HttpReceiverSettings settings;
+    private final ReceiveWorkerPool workers;
+
+    KeepAlivePolicy(HttpReceiverSettings settings, ReceiveWorkerPool workers) {
+        this.settings = settings;
+        this.workers = workers;
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) {
+        HttpConnection conn = HttpCoreContext.adapt(context).getConnection();
+        if (conn != null) {
+            conn.setSocketTimeout(READ_TIMEOUT);
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) {
+        HttpConnection conn = HttpCoreContext.adapt(context).getConnection();
+        Header current = response.getFirstHeader(HTTP.CONN_DIRECTIVE);
+        if (conn == null || (current != null && HTTP.CONN_CLOSE.equalsIgnoreCase(current.getValue()))) {
+            return;
+        }
+
+        long served = conn.getMetrics().getRequestCount();
+        boolean workerNeeded = !settings.isNio() && workers.hasWaiting();
+        if (!settings.keepAlive || served >= settings.maxKeepAliveRequests || workerNeeded) {
+            response.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+            return;
+        }
+
+        response.setHeader(HTTP.CONN_KEEP_ALIVE, String.format("timeout=%d, max=%d",
+                settings.keepAliveTimeout, settings.maxKeepAliveRequests - served));
+        conn.setSocketTimeout(settings.keepAliveTimeout * 1000);
+    }
+}
@@ -0,0 +1,130 @@
+package org.cleanas2.service.net.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.nio.DefaultHttpServerIODispatch;
+import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.nio.protocol.BasicAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
+import org.apache.http.nio.protocol.HttpAsyncService;
+import org.apache.http.nio.protocol.UriHttpAsyncRequestHandlerMapper;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.ListeningIOReactor;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event-loop version of the HttpServiceManagerThread.  A small number of selector threads read the
+ * requests from all open connections, and only once a request has been fully received is it handed
+ * to the worker pool to be processed by the normal (blocking) HttpRequestHandler.  Large request bodies
+ * are written to the temp directory as they arrive, see SpoolingRequestConsumer.
+ * <p/>
+ * A slow partner upload only costs a socket and a buffer, not a thread, so thousands of them can be
+ * open at once with a fixed thread count (ioThreads + workerThreads).
+ * <p/>
+ * A request that arrives while the worker pool is full is answered with a 503 as soon as its headers
+ * have been read, see WorkerPoolRequestHandler.
+ */
+class NioHttpServiceManager implements ReceiveEngine {
+
+    private static final Log logger = LogFactory.getLog(NioHttpServiceManager.class.getSimpleName());
+
+    private final int port;
+    private final String name;
+    private final HttpAsyncService protocolHandler;
+    private final ListeningIOReactor ioReactor;
+    private final ReceiveWorkerPool workers;
+    private final HttpReceiverSettings settings;
+
+    public NioHttpServiceManager(HttpReceiverServiceBase module, int port, HttpProcessor httpProc, HttpRequestHandler handler,
+                                 HttpReceiverSettings settings, ReceiveWorkerPool workers, ServerConfiguration serverConfig) throws IOException {
+        this.port = port;
+        this.settings = settings;
+        this.workers = workers;
+        this.name = module.getClass().getSimpleName();
+
+        // AS2 does not support path mappings, so just accept everything (same as the blocking engine)
+        UriHttpAsyncRequestHandlerMapper mappings = new UriHttpAsyncRequestHandlerMapper();
+        WorkerPoolRequestHandler requestHandler = new WorkerPoolRequestHandler(handler, workers, serverConfig);
+        mappings.register("*", requestHandler);
+        this.protocolHandler = new HttpAsyncService(httpProc, null, null, mappings, requestHandler) {
+            @Override
+            protected HttpAsyncResponseProducer handleException(Exception ex, HttpContext context) {
+                if (ex instanceof WorkerPoolRequestHandler.ServerBusyException) {
+                    return new BasicAsyncResponseProducer(busyResponse(context));
+                }
+                return super.handleException(ex, context);
+            }
+        };
+
+        IOReactorConfig config = IOReactorConfig.custom()
+                .setIoThreadCount(settings.ioThreads)
+                .setSoTimeout(KeepAlivePolicy.READ_TIMEOUT) // changed per connection by the KeepAlivePolicy
+                .setSoReuseAddress(true)
+                .build();
+        this.ioReactor = new DefaultListeningIOReactor(config, new NamedThreadFactory(name + "-io"));
+        this.ioReactor.listen(new InetSocketAddress(port));
+    }
+
+    private HttpResponse busyResponse(HttpContext context) {
+        HttpResponse response = DefaultHttpResponseFactory.INSTANCE.newHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_SERVICE_UNAVAILABLE, context);
+        workers.setBusyResponse(response);
+        return response;
+    }
+
+    @Override
+    public void startEngine() {
+        final IOEventDispatch dispatch = new DefaultHttpServerIODispatch(protocolHandler, ConnectionConfig.DEFAULT);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // blocks until the reactor is shut down
+                    ioReactor.execute(dispatch);
+                } catch (InterruptedIOException ignored) {
+                    logger.info("  ~ interrupted io exception");
+                } catch (IOException e) {
+                    logger.error("I/O reactor error on port " + port + ": " + e.getMessage(), e);
+                }
+            }
+        }, name + "-reactor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    public void stopEngine() {
+        try {
+            ioReactor.shutdown();
+        } catch (IOException e) {
+            logger.error("Error shutting down the I/O reactor", e);
+        }
+        workers.shutdown();
+    }
+
+    @Override
+    public List<String> dumpCurrentStatus() {
+        List<String> messages = new ArrayList<>();
+        messages.add("listening on port  = " + port);
+        messages.add("engine             = " + settings.engine);
+        messages.add("reactor status     = " + ioReactor.getStatus());
+        messages.add("io threads         = " + settings.ioThreads);
+        messages.addAll(workers.dumpCurrentStatus());
+        return messages;
+    }
+}
@@ -0,0 +1,17 @@
+package org.cleanas2.service.net.http;
+
+import org.cleanas2.common.service.AdminDump;
+
+import java.io.IOException;
+
+/**
+ * The part of an HTTP listener that owns the socket and decides which thread runs the handler.  The
+ * blocking engine hands each connection to the worker pool, the NIO engine uses a fixed number of
+ * selector threads and only hands over fully received requests.
+ */
+interface ReceiveEngine extends AdminDump {
+
+    void startEngine() throws IOException;
+
+    void stopEngine();
+}
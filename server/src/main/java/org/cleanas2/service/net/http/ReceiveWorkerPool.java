@@ -0,0 +1,101 @@
+package org.cleanas2.service.net.http;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.cleanas2.common.service.AdminDump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded pool of threads that process incoming requests, shared by both receive engines.  When
+ * all the workers are busy and the queue is full, new work is refused instead of piling up.  The engines
+ * then answer with a "503 Service Unavailable" and a Retry-After header before the body is read, so the
+ * partner backs off and tries again later instead of timing out while we are busy decrypting.
+ */
+class ReceiveWorkerPool implements AdminDump {
+
+    private final ThreadPoolExecutor executor;
+    private final HttpReceiverSettings settings;
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public ReceiveWorkerPool(HttpReceiverSettings settings, ThreadFactory threadFactory) {
+        this.settings = settings;
+        this.executor = new ThreadPoolExecutor(
+                settings.workerThreads, settings.workerThreads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, settings.queueSize)),
+                threadFactory
+        );
+        // let idle workers go, so a large (e.g. virtual thread) pool only costs anything while it is busy
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues the work if there is room.  Returns false (and counts the rejection) if the pool is full,
+     * in which case the caller should send a busy response with setBusyResponse()
+     */
+    public boolean tryExecute(Runnable work) {
+        try {
+            executor.execute(work);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * True if the next request would be rejected.  Used to refuse a request as soon as the headers are read
+     */
+    public boolean isFull() {
+        return executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * True if there is work queued that is waiting for a free worker
+     */
+    public boolean hasWaiting() {
+        return !executor.getQueue().isEmpty();
+    }
+
+    /**
+     * Counts a request that was refused before it was ever queued (see isFull)
+     */
+    public void countRejected() {
+        rejected.incrementAndGet();
+    }
+
+    /**
+     * Fills in the "server busy" response sent to a partner when the pool is full.  The connection is always
+     * closed afterwards, since the body of the request was never read.
+     */
+    public void setBusyResponse(HttpResponse response) {
+        response.setStatusCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(settings.retryAfter));
+        response.setHeader("Connection", "close");
+        response.setEntity(new StringEntity("Server busy, please retry later", ContentType.TEXT_PLAIN));
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public List<String> dumpCurrentStatus() {
+        List<String> messages = new ArrayList<>();
+        messages.add("worker threads     = " + executor.getActiveCount() + " active / " + executor.getPoolSize());
+        messages.add("queue depth        = " + executor.getQueue().size() + " / " + settings.queueSize);
+        messages.add("requests handled   = " + executor.getCompletedTaskCount());
+        messages.add("requests rejected  = " + rejected.get());
+        return messages;
+    }
+}
@@ -0,0 +1,72 @@
+package org.cleanas2.service.net.http;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.cleanas2.service.net.util.PayloadBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Reads the request body straight into a PayloadBuffer as it arrives, instead of collecting it all in memory
+ * like the BasicAsyncRequestConsumer does.  The request handed to the handler has a PayloadEntity, so
+ * MimeUtil.fromHttpRequest uses the buffer as is.
+ */
+class SpoolingRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+
+    private final Path tempDir;
+    private final int threshold;
+    private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+    private HttpRequest request;
+    private PayloadBuffer payload;
+    private boolean completed = false;
+
+    public SpoolingRequestConsumer(Path tempDir, int threshold) {
+        this.tempDir = tempDir;
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected void onRequestReceived(HttpRequest request) {
+        this.request = request;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+        String ct = contentType == null ? null : contentType.toString();
+        this.payload = new PayloadBuffer(ct, entity.getContentLength(), tempDir, threshold);
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+        while (decoder.read(buffer) > 0) {
+            buffer.flip();
+            payload.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    @Override
+    protected HttpRequest buildResult(HttpContext context) {
+        if (payload != null && request instanceof HttpEntityEnclosingRequest) {
+            ((HttpEntityEnclosingRequest) request).setEntity(new PayloadBuffer.PayloadEntity(payload));
+        }
+        completed = true;
+        return request;
+    }
+
+    @Override
+    protected void releaseResources() {
+        // once the request is complete the handler owns the payload, and releases it
+        if (!completed && payload != null) {
+            payload.close();
+        }
+    }
+}
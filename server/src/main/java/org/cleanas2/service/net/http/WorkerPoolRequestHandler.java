@@ -0,0 +1,149 @@
+package org.cleanas2.service.net.http;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.*;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpConnection;
+import org.apache.http.nio.protocol.*;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts one of our normal blocking HttpRequestHandlers to the NIO server.  The request is read by the
+ * selector threads, and the handler is run on the worker pool so decryption, saving files, etc. never
+ * block the event loop.  The response is handed back to the selector threads to be written.
+ * <p/>
+ * If the worker pool is already full when the request headers arrive, a 503 busy response is sent straight
+ * away and the body is never read.  A partner that sent "Expect: 100-continue" gets the 503 instead of the
+ * 100 (see verify), any other partner gets it while it is still uploading, and the connection is closed.
+ */
+class WorkerPoolRequestHandler implements HttpAsyncRequestHandler<HttpRequest>, HttpAsyncExpectationVerifier {
+
+    private static final Log logger = LogFactory.getLog(WorkerPoolRequestHandler.class.getSimpleName());
+    private static final String REJECTED = "cleanas2.rejected";
+    private final HttpRequestHandler handler;
+    private final ReceiveWorkerPool workers;
+    private final ServerConfiguration config;
+
+    public WorkerPoolRequestHandler(HttpRequestHandler handler, ReceiveWorkerPool workers, ServerConfiguration config) {
+        this.handler = handler;
+        this.workers = workers;
+        this.config = config;
+    }
+
+    @Override
+    public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest request, HttpContext context) throws HttpException {
+        if (workers.isFull()) {
+            workers.countRejected();
+            logger.info("worker pool is full, sending 503 to " + HttpCoreContext.adapt(context).getConnection());
+            if (!expectsContinue(request)) {
+                // stop reading, so the body stays in the socket instead of being drained; the 503 is
+                // written by NioHttpServiceManager, which is handed the exception before anything else is read
+                ((NHttpConnection) HttpCoreContext.adapt(context).getConnection()).suspendInput();
+                throw new ServerBusyException();
+            }
+            context.setAttribute(REJECTED, Boolean.TRUE);
+            return new DiscardingRequestConsumer();
+        }
+        context.removeAttribute(REJECTED);
+        return new SpoolingRequestConsumer(config.getDirectory(SystemDir.Temp), config.getSpoolThreshold());
+    }
+
+    /**
+     * Called after processRequest when the partner is waiting for a "100 Continue" before sending the
+     * body.  If the request was rejected it gets the 503 instead, and the body is never sent at all.
+     */
+    @Override
+    public void verify(HttpAsyncExchange exchange, HttpContext context) {
+        if (context.getAttribute(REJECTED) != null) {
+            workers.setBusyResponse(exchange.getResponse());
+        }
+        exchange.submitResponse();
+    }
+
+    private static boolean expectsContinue(HttpRequest request) {
+        return request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).expectContinue();
+    }
+
+    @Override
+    public void handle(final HttpRequest request, final HttpAsyncExchange exchange, final HttpContext context) {
+        // the handlers expect to find the connection here, same as the blocking HttpRequestHandlerThread sets it
+        context.setAttribute("connection", HttpCoreContext.adapt(context).getConnection());
+
+        // the pool can still fill up while the body is being read, in which case it is too late to save reading it
+        boolean accepted = workers.tryExecute(new Runnable() {
+            @Override
+            public void run() {
+                HttpResponse response = exchange.getResponse();
+                try {
+                    handler.handle(request, response, context);
+                } catch (Exception e) {
+                    logger.error("Unhandled error processing request: " + e.getMessage(), e);
+                    response.setStatusCode(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                }
+                exchange.submitResponse(new BasicAsyncResponseProducer(response));
+            }
+        });
+
+        if (!accepted) {
+            logger.info("worker pool is full, sending 503 to " + HttpCoreContext.adapt(context).getConnection());
+            workers.setBusyResponse(exchange.getResponse());
+            exchange.submitResponse(new BasicAsyncResponseProducer(exchange.getResponse()));
+        }
+    }
+
+    /**
+     * Thrown by processRequest to answer a request with the busy response before its body has been read
+     */
+    static class ServerBusyException extends HttpException {
+        private static final long serialVersionUID = 1L;
+
+        ServerBusyException() {
+            super("Worker pool is full");
+        }
+    }
+
+    /**
+     * Stands in for the real consumer of a request that is answered by verify with a 503, so its body is
+     * never sent.  Should a body arrive anyway it is thrown away as it is read (never buffered).
+     */
+    private static class DiscardingRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> {
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        private HttpRequest request;
+
+        @Override
+        protected void onRequestReceived(HttpRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+        }
+
+        @Override
+        protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+            buffer.clear();
+            while (decoder.read(buffer) > 0) {
+                buffer.clear();
+            }
+        }
+
+        @Override
+        protected HttpRequest buildResult(HttpContext context) {
+            return request;
+        }
+
+        @Override
+        protected void releaseResources() {
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package org.cleanas2.service.net.pipelines.fileReceive;
 
+import org.apache.http.HttpInetConnection;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.impl.DefaultBHttpServerConnection;
 import org.apache.http.protocol.HttpContext;
 import org.cleanas2.message.IncomingFileMessage;
 import org.cleanas2.message.IncomingMessage;
 import org.cleanas2.pipeline.PipelineContext;
+import org.cleanas2.service.net.util.PayloadBuffer;
 
 import javax.mail.internet.MimeBodyPart;
 
@@ -22,16 +23,32 @@ public class Context extends PipelineContext {
     public final HttpResponse httpResponse;
     public final HttpRequest httpRequest;
     public final HttpContext httpContext;
-    public final DefaultBHttpServerConnection httpConnection;
+    public final HttpInetConnection httpConnection;
     public MimeBodyPart mimeData;
+    public PayloadBuffer decryptedData;
+    public PayloadBuffer decompressedData;
+    public String receivedContentMic; // calculated while decrypting/verifying, so SendMdn doesn't have to read the data again
     public boolean wasEncryptedOrSigned;
     public IncomingFileMessage fileMessage;
 
-    public Context(IncomingMessage message, HttpRequest request, HttpResponse response, HttpContext context, DefaultBHttpServerConnection connection) {
+    public Context(IncomingMessage message, HttpRequest request, HttpResponse response, HttpContext context, HttpInetConnection connection) {
         this.message = message;
         this.httpContext = context;
         this.httpRequest = request;
         this.httpResponse = response;
         this.httpConnection = connection;
     }
+
+    /**
+     * Frees the received, decrypted and decompressed data (deleting the temp files if they were large)
+     */
+    public void releasePayloads() {
+        if (decryptedData != null) {
+            decryptedData.close();
+        }
+        if (decompressedData != null) {
+            decompressedData.close();
+        }
+        PayloadBuffer.release(httpRequest);
+    }
 }
@@ -2,47 +2,71 @@ package org.cleanas2.service.net.pipelines.fileReceive;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
 import org.apache.http.HttpEntityEnclosingRequest;
+import org.bouncycastle.operator.DigestCalculator;
+import org.cleanas2.common.disposition.DispositionOptions;
 import org.cleanas2.common.disposition.DispositionType;
 import org.cleanas2.common.exception.DispositionException;
 import org.cleanas2.service.CertificateService;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
 import org.cleanas2.service.net.util.MimeUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
 import org.cleanas2.pipeline.PipelineTask;
+import org.cleanas2.util.CryptoHelper;
 
 import javax.inject.Inject;
 import javax.mail.internet.MimeBodyPart;
+import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 import java.text.MessageFormat;
 
+import static org.apache.commons.lang.StringUtils.isBlank;
+import static org.cleanas2.common.disposition.DispositionType.ERR_DECOMPRESSION;
 import static org.cleanas2.common.disposition.DispositionType.ERR_DECRYPTION;
 import static org.cleanas2.common.disposition.DispositionType.ERR_INTEGRITY_CHECK;
 
 /**
  * Reads the incoming request, and extracts the MIME body
- * Optionally decrypts it and verifies the signature, if required.  This could be 3 separate
- * steps, but they are so small it seemed better to group them.
+ * Optionally decrypts it, decompresses it and verifies the signature, if required.  This could be
+ * separate steps, but they are so small it seemed better to group them.
  */
 public class ExtractMimeDataFromRequest implements PipelineTask<Context> {
     private static final Log logger = LogFactory.getLog(ExtractMimeDataFromRequest.class.getSimpleName());
 
     private final CertificateService certs;
+    private final ServerConfiguration config;
 
     @Inject
-    public ExtractMimeDataFromRequest(CertificateService certs) {
+    public ExtractMimeDataFromRequest(CertificateService certs, ServerConfiguration config) {
         this.certs = certs;
+        this.config = config;
     }
 
     @Override
     public void process(Context ctx) throws Exception {
-        MimeBodyPart incomingData = MimeUtil.fromHttpRequest((HttpEntityEnclosingRequest) ctx.httpRequest);
+        Path tempDir = config.getDirectory(SystemDir.Temp);
+        HttpEntityEnclosingRequest request = (HttpEntityEnclosingRequest) ctx.httpRequest;
+        MimeBodyPart incomingData = MimeUtil.fromHttpRequest(request, tempDir, config.getSpoolThreshold());
+        String micAlgorithm = getRequestedMicAlgorithm(request);
+        // if the content is not signed, the MIC is the digest of the decrypted data, so calculate it as we go
+        DigestCalculator mic = micAlgorithm == null ? null : CryptoHelper.getDigestCalculator(micAlgorithm);
 
         try {
             if (MimeUtil.isEncrypted(incomingData)) {
                 logger.debug("decrypting");
                 X509Certificate receiverCert = certs.getCertificate(ctx.message.receiverId);
                 PrivateKey receiverKey = certs.getPrivateKey(ctx.message.receiverId);
-                incomingData = MimeUtil.decryptBodyPart(incomingData, receiverCert, receiverKey);
+                // the decrypted data is about the same size as what we received
+                long expectedSize = request.getEntity().getContentLength();
+                ctx.decryptedData = new PayloadBuffer(null, expectedSize, tempDir, config.getSpoolThreshold());
+                incomingData = MimeUtil.decryptBodyPart(incomingData, receiverCert, receiverKey, ctx.decryptedData,
+                        mic == null ? null : mic.getOutputStream(), config.getCipherProvider());
+                if (mic != null) {
+                    ctx.receivedContentMic = CryptoHelper.formatMIC(mic.getDigest(), micAlgorithm);
+                }
                 ctx.wasEncryptedOrSigned = true;
             }
         } catch (Exception e) {
@@ -53,12 +77,20 @@ public class ExtractMimeDataFromRequest implements PipelineTask<Context> {
             ));
         }
 
+        // compressed after signing, or not signed at all
+        incomingData = decompress(ctx, incomingData, micAlgorithm);
+
+        boolean signed = false;
         try {
             if (MimeUtil.isSigned(incomingData)) {
                 logger.debug("verifying signature");
                 X509Certificate senderCert = certs.getCertificate(ctx.message.senderId);
-                incomingData = MimeUtil.verifyAndRemoveSignature(incomingData, senderCert);
+                MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(incomingData, senderCert);
+                incomingData = verified.content;
+                // the signer already has the digest of the signed content, which is what the MIC is
+                ctx.receivedContentMic = micAlgorithm == null ? null : verified.getMic(micAlgorithm);
                 ctx.wasEncryptedOrSigned = true;
+                signed = true;
             }
         } catch (Exception e) {
             logger.error("Exception verifying signature", e);
@@ -68,7 +100,58 @@ public class ExtractMimeDataFromRequest implements PipelineTask<Context> {
             ));
         }
 
+        // compressed before signing (so the signature is over the compressed data).  the MIC stays the one
+        // from the signature
+        incomingData = decompress(ctx, incomingData, signed ? null : micAlgorithm);
+
         ctx.mimeData = incomingData;
     }
 
+    /**
+     * Decompresses the part if it is compressed (RFC 5402), into a buffer like the decrypted data.  If a MIC
+     * algorithm is given, the MIC is calculated over the uncompressed data as it is written.  A message is only
+     * expected to be compressed once, before or after signing.
+     */
+    private MimeBodyPart decompress(Context ctx, MimeBodyPart part, String micAlgorithm) throws Exception {
+        DigestCalculator mic = micAlgorithm == null ? null : CryptoHelper.getDigestCalculator(micAlgorithm);
+        try {
+            if (!MimeUtil.isCompressed(part) || ctx.decompressedData != null) {
+                return part;
+            }
+            logger.debug("decompressing");
+            Path tempDir = config.getDirectory(SystemDir.Temp);
+            ctx.decompressedData = new PayloadBuffer(null, -1, tempDir, config.getSpoolThreshold());
+            part = MimeUtil.decompressBodyPart(part, ctx.decompressedData, mic == null ? null : mic.getOutputStream());
+            if (mic != null) {
+                ctx.receivedContentMic = CryptoHelper.formatMIC(mic.getDigest(), micAlgorithm);
+            }
+            return part;
+        } catch (Exception e) {
+            logger.error("Exception decompressing", e);
+            throw new DispositionException(DispositionType.error(ERR_DECOMPRESSION), MessageFormat.format(
+                    "The message sent to Recipient {0} by {1} was received but an error occurred during decompression",
+                    ctx.message.senderId, ctx.message.receiverId
+            ));
+        }
+    }
+
+    /**
+     * Reads the MIC algorithm the sender asked for in the Disposition-Notification-Options header, or null if
+     * they did not ask for one (or it can't be read, or we don't support it, in which case SendMdn will deal with
+     * it instead of the message being rejected as one we could not decrypt)
+     */
+    private static String getRequestedMicAlgorithm(HttpEntityEnclosingRequest request) {
+        Header h = request.getFirstHeader("Disposition-Notification-Options");
+        if (h == null) return null;
+        try {
+            String micAlgorithm = new DispositionOptions(h.getValue()).micAlgorithm;
+            if (isBlank(micAlgorithm)) return null;
+            CryptoHelper.getDigestCalculator(micAlgorithm);
+            return micAlgorithm;
+        } catch (Exception e) {
+            logger.warn("Can't calculate the MIC while reading the message: " + e.getMessage());
+            return null;
+        }
+    }
+
 }
@@ -68,7 +68,10 @@ public class SendMdn implements PipelineTask<Context> {
 
             if (!isBlank(mdn.signedReceiptMicAlgorithm)) {
                 try {
-                    mdn.attributes.receivedContentMic = CryptoHelper.calculateMIC(ctx.mimeData, mdn.signedReceiptMicAlgorithm);
+                    // normally calculated while the data was decrypted or verified, otherwise read it all again
+                    mdn.attributes.receivedContentMic = ctx.receivedContentMic != null
+                            ? ctx.receivedContentMic
+                            : CryptoHelper.calculateMIC(ctx.mimeData, mdn.signedReceiptMicAlgorithm);
                     //TODO: Validate MIC here, or in some other place ?
                 } catch (Exception e) {
                     throw DispositionException.error(DispositionType.ERR_UNEXPECTED, "Unable to calculate the MIC for your message", e);
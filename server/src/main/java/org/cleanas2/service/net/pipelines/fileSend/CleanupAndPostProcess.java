@@ -2,12 +2,16 @@ package org.cleanas2.service.net.pipelines.fileSend;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.util.EntityUtils;
 import org.cleanas2.pipeline.PipelineTask;
 
 import javax.inject.Inject;
+import java.io.IOException;
 
 /**
- * Closes the connection used for sending.  Must always be run after the pipeline finishes (even if it fails)
+ * Gives the connection used for sending back to the pool, and deletes the payload temp file (and the
+ * broadcast content, once the last partner has it).  Must always be run after the pipeline finishes
+ * (even if it fails)
  */
 public class CleanupAndPostProcess implements PipelineTask<Context> {
     private static final Log logger = LogFactory.getLog(CleanupAndPostProcess.class.getSimpleName());
@@ -18,12 +22,20 @@ public class CleanupAndPostProcess implements PipelineTask<Context> {
 
     @Override
     public void process(Context ctx) throws Exception {
-        if (ctx.client != null) {
-            ctx.client.close();
-        }
         if (ctx.response != null) {
+            // read whatever is left of the response, so the connection can be used again for the next file
+            try {
+                EntityUtils.consume(ctx.response.getEntity());
+            } catch (IOException e) {
+                logger.debug("Could not read the rest of the response, the connection will be closed: " + e.getMessage());
+            }
             ctx.response.close();
         }
-
+        if (ctx.payload != null) {
+            ctx.payload.close();
+        }
+        if (ctx.broadcast != null) {
+            ctx.broadcast.release();
+        }
     }
 }
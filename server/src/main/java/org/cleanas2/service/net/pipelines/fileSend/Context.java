@@ -1,9 +1,11 @@
 package org.cleanas2.service.net.pipelines.fileSend;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.cleanas2.message.OutgoingFileMessage;
 import org.cleanas2.pipeline.PipelineContext;
+import org.cleanas2.service.net.util.BroadcastContent;
+import org.cleanas2.service.net.util.MimeUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
 
 import javax.mail.internet.MimeBodyPart;
 
@@ -14,8 +16,12 @@ public class Context extends PipelineContext {
 
     public final OutgoingFileMessage message;
     public MimeBodyPart mimeData;
+    public PayloadBuffer payload;
+    public MimeUtil.SignedContent signed;
+    public BroadcastContent broadcast;
+    public String micAlgorithm;
     public CloseableHttpResponse response;
-    public CloseableHttpClient client;
+    public boolean unreachable;
 
     public Context(OutgoingFileMessage msg) {
         message = msg;
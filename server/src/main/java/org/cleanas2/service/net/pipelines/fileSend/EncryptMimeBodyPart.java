@@ -3,8 +3,10 @@ package org.cleanas2.service.net.pipelines.fileSend;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.common.disposition.DispositionOptions;
 import org.cleanas2.service.CertificateService;
 import org.cleanas2.service.PartnerService;
+import org.cleanas2.service.ServerConfiguration;
 import org.cleanas2.service.net.FileSenderService;
 import org.cleanas2.service.net.util.MimeUtil;
 import org.cleanas2.pipeline.PipelineTask;
@@ -15,44 +17,74 @@ import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
 
 /**
- * Takes the MIME message created by a previous task, and encrypts/signs it as requested
- * by the partnership agreement.
+ * Takes the MIME message created by a previous task, and compresses/signs/encrypts it as requested
+ * by the partnership agreement.  When compressing, the MIC is over what was signed (so the compressed
+ * data if it was compressed first), or over the uncompressed file if it is not signed (RFC 5402).
  */
 public class EncryptMimeBodyPart implements PipelineTask<Context> {
     private static final Log logger = LogFactory.getLog(FileSenderService.class.getSimpleName());
     private final PartnerService partners;
     private final CertificateService certs;
+    private final ServerConfiguration config;
 
     @Inject
-    public EncryptMimeBodyPart(CertificateService certs, PartnerService partners) {
+    public EncryptMimeBodyPart(CertificateService certs, PartnerService partners, ServerConfiguration config) {
         this.partners = partners;
         this.certs = certs;
+        this.config = config;
     }
 
     @Override
     public void process(Context ctx) throws Exception {
         PartnerRecord p = partners.getPartner(ctx.message.receiverId);
 
-        if (!p.shouldSign() && !p.shouldEncrypt()) return;
+        if (ctx.broadcast != null) {
+            // already read and signed once for all the partners it is going to
+            ctx.mimeData = ctx.broadcast.newPart();
+        }
+
+        if (!p.shouldSign() && !p.shouldEncrypt() && !p.shouldCompress()) return;
 
         MimeBodyPart part = ctx.mimeData;
+        MimeUtil.SignedContent signed = null;
+        MimeBodyPart micPart = ctx.mimeData;   // what was signed, or the file itself if not signed
 
-        if (p.shouldSign()) {
-            X509Certificate senderCert = certs.getCertificate(ctx.message.senderId);
-            PrivateKey senderKey = certs.getPrivateKey(ctx.message.senderId);
-            part = MimeUtil.signBodyPart(part, senderCert, senderKey, p.sendSettings.signAlgorithm);
-            logger.debug("Message signed successfully");
+        if (ctx.broadcast == null) {
+            if (p.compressBeforeSigning()) {
+                part = MimeUtil.compressBodyPart(part, p.sendSettings.transferEncoding);
+            }
+            if (p.shouldSign()) {
+                X509Certificate senderCert = certs.getCertificate(ctx.message.senderId);
+                PrivateKey senderKey = certs.getPrivateKey(ctx.message.senderId);
+                micPart = part;
+                signed = MimeUtil.signContent(part, senderCert, senderKey, p.sendSettings.signAlgorithm);
+                part = signed.part;
+                logger.debug("Message signed successfully");
+            }
+            if (p.shouldCompress() && !p.compressBeforeSigning()) {
+                part = MimeUtil.compressBodyPart(part, p.sendSettings.transferEncoding);
+            }
         }
 
         if (p.shouldEncrypt()) {
             X509Certificate receiverCert = certs.getCertificate(ctx.message.receiverId);
-            part = MimeUtil.encryptBodyPart(part, receiverCert, p.sendSettings.encryptAlgorithm);
+            part = MimeUtil.encryptBodyPart(part, receiverCert, p.sendSettings.encryptAlgorithm, config.getCipherProvider());
             logger.debug("Message encrypted successfully");
         }
 
         ctx.message.contentType = part.getContentType();
         ctx.message.contentDisposition = p.sendSettings.mdnOptions;
-        ctx.message.outgoingMic = MimeUtil.calculateMicString(ctx.mimeData, p.sendSettings.mdnOptions);
+
+        String micAlgorithm = new DispositionOptions(p.sendSettings.mdnOptions).micAlgorithm;
+        if (ctx.broadcast != null) {
+            ctx.message.outgoingMic = ctx.broadcast.mic;
+        } else if (signed != null && signed.hasMicAlgorithm(micAlgorithm)) {
+            // the signer digests the same content with the same algorithm, so WritePayload takes the MIC from it
+            ctx.signed = signed;
+            ctx.micAlgorithm = micAlgorithm;
+        } else {
+            ctx.message.outgoingMic = MimeUtil.calculateMicString(micPart, p.sendSettings.mdnOptions);
+        }
 
         ctx.mimeData = part;
     }
@@ -5,20 +5,21 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.HttpClients;
 import org.cleanas2.common.PartnerRecord;
 import org.cleanas2.service.CompanyService;
 import org.cleanas2.service.PartnerService;
 import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.net.HttpClientService;
 import org.cleanas2.service.net.util.HeaderBuilder;
 import org.cleanas2.service.net.util.NetUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
 import org.cleanas2.pipeline.PipelineTask;
 import org.cleanas2.util.Constants;
 import org.cleanas2.util.DebugUtil;
 import org.joda.time.DateTime;
 
 import javax.inject.Inject;
+import java.io.IOException;
 
 import static java.text.MessageFormat.format;
 
@@ -34,39 +35,53 @@ public class SendFile implements PipelineTask<Context> {
     private final PartnerService partners;
     private final CompanyService company;
     private final ServerConfiguration config;
+    private final HttpClientService http;
 
     @Inject
-    public SendFile(PartnerService partners, CompanyService company, ServerConfiguration config) {
+    public SendFile(PartnerService partners, CompanyService company, ServerConfiguration config, HttpClientService http) {
         this.partners = partners;
         this.company = company;
         this.config = config;
+        this.http = http;
     }
 
     @Override
     public void process(Context ctx) throws Exception {
         PartnerRecord p = this.partners.getPartner(ctx.message.receiverId);
 
-        ctx.client = HttpClients.createDefault();
-
         HttpPost post = new HttpPost(p.sendSettings.url);
         post.setHeaders(getOutgoingHeaders(ctx, p));
-        post.setEntity(new InputStreamEntity(ctx.mimeData.getInputStream()));
+        post.setEntity(new PayloadBuffer.PayloadEntity(ctx.payload));
 
         DebugUtil.debugPrintHeaders(logger, "OUTGOING", post.getAllHeaders());
 
-        ctx.response = ctx.client.execute(post);
+        // the connection goes back to the pool when CleanupAndPostProcess closes the response
+        try {
+            ctx.response = http.getClient().execute(post);
+        } catch (IOException e) {
+            // could not connect, or no answer came back
+            ctx.unreachable = true;
+            throw e;
+        }
 
         DebugUtil.debugPrintHeaders(logger, "Response Headers", ctx.response.getAllHeaders());
 
         if (NetUtil.isInvalidResponseCode(ctx.response)) {
+            ctx.unreachable = isUnavailable(ctx.response.getStatusLine().getStatusCode());
             throw new HttpResponseException(ctx.response.getStatusLine().getStatusCode(),
                     "Server responded with an invalid eventLevel code");
         }
     }
 
+    /**
+     * The partner (or a proxy in front of it) is there, but is not taking messages right now
+     */
+    private static boolean isUnavailable(int status) {
+        return status == 502 || status == 503 || status == 504;
+    }
+
     private Header[] getOutgoingHeaders(Context ctx, PartnerRecord p) {
         HeaderBuilder b = new HeaderBuilder();
-        b.add("Connection", "close, TE");
         b.add("User-Agent", Constants.AS2_SERVER_SENDER_NAME);
         b.add("Date", DateTime.now().toString("EEE, dd MMM yyyy HH:mm:ss Z"));
         b.add("Mime-Version", Constants.MIME_VERSION_1_0); // make sure this is the encoding used in the as2Msg, run TBF1
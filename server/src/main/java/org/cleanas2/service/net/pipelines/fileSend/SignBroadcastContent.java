@@ -0,0 +1,74 @@
+package org.cleanas2.service.net.pipelines.fileSend;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.common.disposition.DispositionOptions;
+import org.cleanas2.common.exception.AS2Exception;
+import org.cleanas2.pipeline.PipelineTask;
+import org.cleanas2.service.CertificateService;
+import org.cleanas2.service.PartnerService;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
+import org.cleanas2.service.net.util.BroadcastContent;
+import org.cleanas2.service.net.util.MimeUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
+
+import javax.inject.Inject;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * The first half of EncryptMimeBodyPart, for a file going to many partners: compresses and signs the part
+ * (if the partners want that) and writes it into a BroadcastContent, along with the MIC.  Run once with the message for
+ * one of the partners, and then every partner with the same send settings uses the result.
+ */
+public class SignBroadcastContent implements PipelineTask<Context> {
+    private static final Log logger = LogFactory.getLog(SignBroadcastContent.class.getSimpleName());
+    private final PartnerService partners;
+    private final CertificateService certs;
+    private final ServerConfiguration config;
+
+    @Inject
+    public SignBroadcastContent(CertificateService certs, PartnerService partners, ServerConfiguration config) {
+        this.partners = partners;
+        this.certs = certs;
+        this.config = config;
+    }
+
+    @Override
+    public void process(Context ctx) throws Exception {
+        PartnerRecord p = partners.getPartner(ctx.message.receiverId);
+        MimeBodyPart part = ctx.mimeData;
+        MimeUtil.SignedContent signed = null;
+
+        MimeBodyPart micPart = ctx.mimeData;
+
+        if (p.compressBeforeSigning()) {
+            part = MimeUtil.compressBodyPart(part, p.sendSettings.transferEncoding);
+        }
+        if (p.shouldSign()) {
+            micPart = part;
+            signed = MimeUtil.signContent(part, certs.getCertificate(ctx.message.senderId), certs.getPrivateKey(ctx.message.senderId), p.sendSettings.signAlgorithm);
+            part = signed.part;
+        }
+        if (p.shouldCompress() && !p.compressBeforeSigning()) {
+            part = MimeUtil.compressBodyPart(part, p.sendSettings.transferEncoding);
+        }
+
+        PayloadBuffer data = BroadcastContent.writePart(part, config.getDirectory(SystemDir.Temp), config.getSpoolThreshold());
+        String micAlgorithm = new DispositionOptions(p.sendSettings.mdnOptions).micAlgorithm;
+        String mic;
+        if (signed != null && signed.hasMicAlgorithm(micAlgorithm)) {
+            mic = signed.getMic(micAlgorithm);
+        } else {
+            mic = MimeUtil.calculateMicString(micPart, p.sendSettings.mdnOptions);
+        }
+        if (mic == null) {
+            data.close();
+            throw new AS2Exception("The signer did not calculate a " + micAlgorithm + " digest for the MIC");
+        }
+
+        ctx.broadcast = new BroadcastContent(data, mic);
+        logger.debug(String.format("Broadcast content is %d bytes (%s)", data.size(), signed != null ? "signed" : "not signed"));
+    }
+}
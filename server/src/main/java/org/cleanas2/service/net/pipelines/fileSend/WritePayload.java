@@ -0,0 +1,42 @@
+package org.cleanas2.service.net.pipelines.fileSend;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.common.exception.AS2Exception;
+import org.cleanas2.pipeline.PipelineTask;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
+import org.cleanas2.service.net.util.PayloadBuffer;
+
+import javax.inject.Inject;
+
+/**
+ * Writes the finished (signed/encrypted) message into a PayloadBuffer, which goes to the temp directory if
+ * it is larger than "server.spoolThreshold".  The signing and encryption actually happen here, streamed from
+ * the original file, and the result can be posted with a Content-Length.  CleanupAndPostProcess deletes it.
+ * <p/>
+ * If the message was signed with the MIC algorithm, the outgoing MIC is the digest the signer just calculated,
+ * instead of reading the whole file again to calculate it.
+ */
+public class WritePayload implements PipelineTask<Context> {
+    private static final Log logger = LogFactory.getLog(WritePayload.class.getSimpleName());
+    private final ServerConfiguration config;
+
+    @Inject
+    public WritePayload(ServerConfiguration config) {
+        this.config = config;
+    }
+
+    @Override
+    public void process(Context ctx) throws Exception {
+        ctx.payload = PayloadBuffer.fromContent(ctx.mimeData, config.getDirectory(SystemDir.Temp), config.getSpoolThreshold());
+        logger.debug(String.format("Outgoing payload is %d bytes (%s)", ctx.payload.size(), ctx.payload.isOnDisk() ? "on disk" : "in memory"));
+
+        if (ctx.signed != null) {
+            ctx.message.outgoingMic = ctx.signed.getMic(ctx.micAlgorithm);
+            if (ctx.message.outgoingMic == null) {
+                throw new AS2Exception("The signer did not calculate a " + ctx.micAlgorithm + " digest for the MIC");
+            }
+        }
+    }
+}
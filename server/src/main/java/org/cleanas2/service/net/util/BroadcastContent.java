@@ -0,0 +1,62 @@
+package org.cleanas2.service.net.util;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file that is being sent to many partners, read and signed once for all of them.  The whole part (headers
+ * and content) is written into a PayloadBuffer, and each partner's send reads it back with newPart() and only
+ * does the encryption itself.  The buffer is deleted when the last send using it calls release().
+ */
+public class BroadcastContent {
+
+    public final String mic;
+    private final PayloadBuffer data;
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    public BroadcastContent(PayloadBuffer data, String mic) {
+        this.data = data;
+        this.mic = mic;
+    }
+
+    /**
+     * Writes the part, headers included, into a new buffer.  A signed part is signed here, as it is written.
+     */
+    public static PayloadBuffer writePart(MimeBodyPart part, Path tempDir, int threshold) throws IOException, MessagingException {
+        PayloadBuffer payload = new PayloadBuffer(part.getContentType(), -1, tempDir, threshold);
+        try (OutputStream out = payload.newOutputStream()) {
+            part.writeTo(out);
+        } catch (IOException | MessagingException e) {
+            payload.close();
+            throw e;
+        }
+        return payload;
+    }
+
+    /**
+     * A new body part over the buffer.  Only the headers are parsed, the content is read from the buffer when
+     * the part is written, so the bytes that were signed are sent exactly as they are.  Each send gets its own
+     * part, because bouncy castle sets headers on the part it encrypts.
+     */
+    public MimeBodyPart newPart() throws IOException, MessagingException {
+        return new MimeBodyPart(data.getInputStream());
+    }
+
+    public long size() {
+        return data.size();
+    }
+
+    public void retain(int count) {
+        users.addAndGet(count);
+    }
+
+    public void release() {
+        if (users.decrementAndGet() == 0) {
+            data.close();
+        }
+    }
+}
@@ -127,7 +127,6 @@ public class MdnUtil {
         mdn.partnerId = message.senderId;
         mdn.companyId = message.receiverId;
         mdn.responseHeaders.putAll(map(
-                "Connection", "close, TE",
                 "AS2-Version", Constants.AS2_PROTOCOL_VERSION,
                 "Date", DateTime.now().toString("EEE, dd MMM yyyy HH:mm:ss Z"),
                 "Server", Constants.AS2_SERVER_SENDER_NAME,
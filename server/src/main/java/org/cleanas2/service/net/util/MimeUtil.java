@@ -1,5 +1,6 @@
 package org.cleanas2.service.net.util;
 
+import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -10,15 +11,20 @@ import org.bouncycastle.cms.*;
 import org.bouncycastle.cms.jcajce.*;
 import org.bouncycastle.mail.smime.*;
 import org.bouncycastle.openssl.EncryptionException;
+import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 import org.cleanas2.common.disposition.DispositionOptions;
 import org.cleanas2.util.CryptoHelper;
 
 import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.mail.MessagingException;
 import javax.mail.internet.*;
-import javax.mail.util.ByteArrayDataSource;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
@@ -53,6 +59,16 @@ public class MimeUtil {
                 "enveloped-data".equalsIgnoreCase(mimeType);
     }
 
+    /**
+     * Determines if the body part is compressed (RFC 5402), based on the content type
+     */
+    public static boolean isCompressed(MimeBodyPart part) throws MessagingException {
+        ContentType contentType = new ContentType(part.getContentType());
+        String mimeType = contentType.getParameter("smime-type");
+        return "application/pkcs7-mime".equalsIgnoreCase(contentType.getBaseType()) &&
+                "compressed-data".equalsIgnoreCase(mimeType);
+    }
+
     /**
      * Determines if the body part is signed (not necessarily encrypted)
      *
@@ -76,19 +92,31 @@ public class MimeUtil {
      * @param signingAlgorithm The algorithm to use, usually SHA1 or MD5
      */
     public static MimeBodyPart signBodyPart(MimeBodyPart part, X509Certificate senderCert, PrivateKey senderKey, String signingAlgorithm) throws EncryptionException {
+        return signContent(part, senderCert, senderKey, signingAlgorithm).part;
+    }
+
+    /**
+     * Same as signBodyPart, but also returns the signer, which has the digest of the content (our outgoing MIC)
+     * once the signed part has been written.  Bouncy castle only signs when the part is written out, so the MIC
+     * is not available straight away.
+     */
+    public static SignedContent signContent(MimeBodyPart part, X509Certificate senderCert, PrivateKey senderKey, String signingAlgorithm) throws EncryptionException {
         try {
             // make a new mime part from the CONTENT, ignoring the headers that were added
             // something is fishy here...
             SMIMESignedGenerator gen = new SMIMESignedGenerator();
-            SignerInfoGenerator sigGen = new JcaSimpleSignerInfoGeneratorBuilder()
+            // bouncy castle only signs the (small) signed attributes, the content is digested by the JVM
+            ContentSigner contentSigner = new JcaContentSignerBuilder(CryptoHelper.translateSigningAlgorithmName(signingAlgorithm))
                     .setProvider(BC)
-                    .build(CryptoHelper.translateSigningAlgorithmName(signingAlgorithm), senderKey, senderCert);
+                    .build(senderKey);
+            SignerInfoGenerator sigGen = new JcaSignerInfoGeneratorBuilder(CryptoHelper.getDigestCalculatorProvider())
+                    .build(contentSigner, senderCert);
             gen.addSignerInfoGenerator(sigGen);
             MimeMultipart smime = gen.generate(part);
             MimeBodyPart tmpBody = new MimeBodyPart();
             tmpBody.setContent(smime);
             tmpBody.setHeader("Content-Type", smime.getContentType());
-            return tmpBody;
+            return new SignedContent(tmpBody, sigGen);
         } catch (Exception e) {
             throw new EncryptionException("Error signing body part : " + e.getMessage(), e);
         }
@@ -99,42 +127,101 @@ public class MimeUtil {
      *
      * @param part      MIME body part to encrypt.  This could have previously been signed
      * @param cert      X509 Certificate to encrypt with.  The receiver will use their private key to decrypt
-     * @param algorithm Encryption algorithm to use (des3/aes256/idea/etc)
+     * @param algorithm Encryption algorithm to use (3des/aes128/aes256/etc)
      */
     public static MimeBodyPart encryptBodyPart(MimeBodyPart part, X509Certificate cert, String algorithm) throws EncryptionException {
+        return encryptBodyPart(part, cert, algorithm, BC);
+    }
+
+    /**
+     * Same as encryptBodyPart, but the content (the bulk of the work) is encrypted with the given JCA provider.  The
+     * key is still wrapped by bouncy castle.  "SunJCE" uses the AES instructions of the CPU where it can.
+     */
+    public static MimeBodyPart encryptBodyPart(MimeBodyPart part, X509Certificate cert, String algorithm, String cipherProvider) throws EncryptionException {
         try {
             ASN1ObjectIdentifier algo = CryptoHelper.translateEncryptionAlgorithmName(algorithm);
             SMIMEEnvelopedGenerator gen = new SMIMEEnvelopedGenerator();
             gen.addRecipientInfoGenerator(new JceKeyTransRecipientInfoGenerator(cert).setProvider(BC));
-            return gen.generate(part, new JceCMSContentEncryptorBuilder(algo).setProvider(BC).build());
+            return gen.generate(part, new JceCMSContentEncryptorBuilder(algo).setProvider(cipherProvider).build());
         } catch (Exception e) {
             throw new EncryptionException("Error encrypting body part: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Compresses a MIME part with zlib (RFC 5402).  Like signing, nothing is compressed until the returned part
+     * is written, so the data is compressed as it streams out.
+     *
+     * @param part             The part to compress.  This could already be signed
+     * @param transferEncoding Content-Transfer-Encoding of the compressed part, when it goes inside a signature
+     */
+    public static MimeBodyPart compressBodyPart(MimeBodyPart part, String transferEncoding) throws EncryptionException {
+        try {
+            SMIMECompressedGenerator gen = new SMIMECompressedGenerator();
+            gen.setContentTransferEncoding(transferEncoding);
+            return gen.generate(part, new ZlibCompressor());
+        } catch (Exception e) {
+            throw new EncryptionException("Error compressing body part: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decompresses a MIME part into the buffer, the same way decryptBodyPart does, so a large message is never
+     * held in memory.  The returned part reads from the buffer.
+     *
+     * @param part Part to decompress
+     * @param out  Buffer to hold the decompressed data
+     * @param tee  If not null, the decompressed data is also written here as it is read (e.g. to calculate the MIC)
+     */
+    public static MimeBodyPart decompressBodyPart(MimeBodyPart part, PayloadBuffer out, OutputStream tee)
+            throws MessagingException, CMSException, IOException {
+        if (!isCompressed(part)) {
+            throw new MessagingException("Content-Type indicates data isn't compressed");
+        }
+
+        SMIMECompressedParser compressed = new SMIMECompressedParser(part);
+        CMSTypedStream data = compressed.getContent(new ZlibExpanderProvider());
+        try (InputStream in = tee == null ? data.getContentStream() : new TeeInputStream(data.getContentStream(), tee)) {
+            out.readFrom(in);
+        }
+        return new MimeBodyPart(out.getInputStream());
+    }
+
     /**
      * Decrypts a MIME part using the given key & certificate.  Throws an error if the body part isn't actually
-     * encrypted according to the Content-Type in the header
+     * encrypted according to the Content-Type in the header.
+     * <p/>
+     * The data is decrypted as it is read, and written to the payload buffer (which goes to disk if it is large).  The
+     * returned body part reads from the buffer, so the buffer must not be closed until the part is no longer needed.
      *
      * @param part Part to decrypt
      * @param cert Certificate to use
      * @param key  Key to use
+     * @param out  Buffer to hold the decrypted data
+     * @param tee  If not null, the decrypted data is also written here as it is read (e.g. to calculate the MIC)
      * @throws GeneralSecurityException          Thrown when the content is not actually encrypted, or when signatures do not match
      * @throws javax.mail.MessagingException
      * @throws org.bouncycastle.cms.CMSException
      * @throws java.io.IOException
      * @throws SMIMEException
      */
-    public static MimeBodyPart decryptBodyPart(MimeBodyPart part, X509Certificate cert, PrivateKey key)
-            throws GeneralSecurityException, MessagingException, CMSException, IOException,
-            SMIMEException {
+    public static MimeBodyPart decryptBodyPart(MimeBodyPart part, X509Certificate cert, PrivateKey key, PayloadBuffer out, OutputStream tee)
+            throws GeneralSecurityException, MessagingException, CMSException, IOException {
+        return decryptBodyPart(part, cert, key, out, tee, BC);
+    }
+
+    /**
+     * Same as decryptBodyPart, but the content is decrypted with the given JCA provider (see encryptBodyPart)
+     */
+    public static MimeBodyPart decryptBodyPart(MimeBodyPart part, X509Certificate cert, PrivateKey key, PayloadBuffer out, OutputStream tee, String cipherProvider)
+            throws GeneralSecurityException, MessagingException, CMSException, IOException {
 
         // Make sure the data is encrypted
         if (!isEncrypted(part)) {
             throw new GeneralSecurityException("Content-Type indicates data isn't encrypted");
         }
 
-        SMIMEEnveloped envelope = new SMIMEEnveloped(part);
+        SMIMEEnvelopedParser envelope = new SMIMEEnvelopedParser(part);
 
         RecipientId recId = new JceKeyTransRecipientId(cert);
         RecipientInformationStore recipients = envelope.getRecipientInfos();
@@ -144,8 +231,14 @@ public class MimeUtil {
             throw new GeneralSecurityException("Certificate does not match part signature");
         }
 
-        byte[] data = recipient.getContent(new JceKeyTransEnvelopedRecipient(key).setProvider(BC));
-        return SMIMEUtil.toMimeBodyPart(data);
+        CMSTypedStream data = recipient.getContentStream(new JceKeyTransEnvelopedRecipient(key).setProvider(BC).setContentProvider(cipherProvider));
+        try (InputStream in = tee == null ? data.getContentStream() : new TeeInputStream(data.getContentStream(), tee)) {
+            out.readFrom(in);
+        }
+
+        // the buffer gives out SharedInputStreams, so the body part (and any multipart inside it) points into
+        // the buffer instead of reading the content into memory
+        return new MimeBodyPart(out.getInputStream());
     }
 
     /**
@@ -155,6 +248,14 @@ public class MimeUtil {
      * @param cert Certificate the part should have been signed with on the sending side
      */
     public static MimeBodyPart verifyAndRemoveSignature(MimeBodyPart part, X509Certificate cert) throws GeneralSecurityException, IOException, MessagingException {
+        return verifySignature(part, cert).content;
+    }
+
+    /**
+     * Same as verifyAndRemoveSignature, but also returns the signer that was verified.  The signer has the
+     * digest of the content, which is the MIC of a signed message, so it doesn't need to be calculated again.
+     */
+    public static VerifiedContent verifySignature(MimeBodyPart part, X509Certificate cert) throws GeneralSecurityException, IOException, MessagingException {
         try {
             if (!isSigned(part)) {
                 throw new GeneralSecurityException("Content-Type indicates data isn't signed");
@@ -173,9 +274,9 @@ public class MimeUtil {
                 //X509Certificate abc = new JcaX509CertificateConverter().setProvider(BC).getCertificate((X509CertificateHolder) certIt.next());
 
                 try {
-                    if (signer.verify(new JcaSimpleSignerInfoVerifierBuilder().setProvider(BC).build(cert))) {
+                    if (signer.verify(new JcaSignerInfoVerifierBuilder(CryptoHelper.getDigestCalculatorProvider()).setProvider(BC).build(cert))) {
                         logger.debug("signature verified");
-                        break;
+                        return new VerifiedContent(smime.getContent(), signer);
                     } else {
                         logger.debug("signature verification failed");
                     }
@@ -183,12 +284,68 @@ public class MimeUtil {
                     logger.error("signature verification failed", e);
                 }
             }
-            return smime.getContent();
+            return new VerifiedContent(smime.getContent(), null);
         } catch (CMSException e) {
             throw new GeneralSecurityException("An encryption related error occurred when checking/removing the digital signature", e);
         }
     }
 
+    /**
+     * A signed body part, and the signer that signs it when it is written
+     */
+    public static class SignedContent {
+        public final MimeBodyPart part;
+        private final SignerInfoGenerator signer;
+
+        public SignedContent(MimeBodyPart part, SignerInfoGenerator signer) {
+            this.part = part;
+            this.signer = signer;
+        }
+
+        /**
+         * True if the signer digests with the algorithm the MIC is wanted in (so getMic will work)
+         */
+        public boolean hasMicAlgorithm(String digestAlgorithm) {
+            return !isBlank(digestAlgorithm) && CryptoHelper.isDigestAlgorithm(digestAlgorithm, signer.getDigestAlgorithm().getAlgorithm().getId());
+        }
+
+        /**
+         * The MIC the signer calculated over the content, or null if the part has not been written yet or the
+         * signer used a different digest than the one requested
+         */
+        public String getMic(String digestAlgorithm) {
+            byte[] digest = signer.getCalculatedDigest();
+            if (digest == null || !hasMicAlgorithm(digestAlgorithm)) {
+                return null;
+            }
+            return CryptoHelper.formatMIC(digest, digestAlgorithm);
+        }
+    }
+
+    /**
+     * The content of a signed body part with the signature removed, and the signer that was verified (if any)
+     */
+    public static class VerifiedContent {
+        public final MimeBodyPart content;
+        public final SignerInformation signer;
+
+        public VerifiedContent(MimeBodyPart content, SignerInformation signer) {
+            this.content = content;
+            this.signer = signer;
+        }
+
+        /**
+         * The MIC the signer calculated over the content, or null if the signature was not verified or the
+         * signer used a different digest than the one requested
+         */
+        public String getMic(String digestAlgorithm) {
+            if (signer == null || signer.getContentDigest() == null || !CryptoHelper.isDigestAlgorithm(digestAlgorithm, signer.getDigestAlgOID())) {
+                return null;
+            }
+            return CryptoHelper.formatMIC(signer.getContentDigest(), digestAlgorithm);
+        }
+    }
+
     /**
      * Calculates the MIC value for the given MimeBodyPart.  This normally happens before encryption,
      * and is verified after decryption.  It relies on the partnership settings to tell us which algorithm,
@@ -234,17 +391,20 @@ public class MimeUtil {
     }
 
     /**
-     * Creates a MimeBodyPart from the HttpEntity in the request
+     * Creates a MimeBodyPart from the HttpEntity in the request.  The body is read into a PayloadBuffer, so
+     * large requests are written to the temp directory instead of being held in memory.  Call
+     * PayloadBuffer.release(request) when finished with the request.
      *
+     * @param tempDir   Where to write bodies larger than the threshold
+     * @param threshold Size in bytes above which the body is written to disk
      * @throws MessagingException When there is an error creating the body part
      * @throws IOException        When there is an error reading from the stream
      */
-    public static MimeBodyPart fromHttpRequest(HttpEntityEnclosingRequest request) throws IOException, MessagingException {
+    public static MimeBodyPart fromHttpRequest(HttpEntityEnclosingRequest request, Path tempDir, int threshold) throws IOException, MessagingException {
         String ct = getSingleHeader(request, "Content-Type");
-        byte[] entityContent = EntityUtils.toByteArray(request.getEntity());
-        ByteArrayDataSource dataSource = new ByteArrayDataSource(entityContent, ct);
+        PayloadBuffer payload = PayloadBuffer.fromRequest(request, tempDir, threshold);
         MimeBodyPart receivedPart = new MimeBodyPart();
-        receivedPart.setDataHandler(new DataHandler(dataSource));
+        receivedPart.setDataHandler(new DataHandler(payload));
         receivedPart.setHeader("Content-Type", ct);
         return receivedPart;
     }
@@ -258,11 +418,19 @@ public class MimeUtil {
     }
 
     /**
-     * Reads the contents of a file into a MimeBodyPart.  Does not set the content type
+     * Creates a MimeBodyPart that reads from the file whenever it is written, so the file is never loaded into
+     * memory.  The file must not change until the part has been sent.  Does not set the content type header
      */
-    public static MimeBodyPart fromFile(Path filePath, String contentType) throws IOException, MessagingException {
-        byte[] data = Files.readAllBytes(filePath);
-        ByteArrayDataSource dataSource = new ByteArrayDataSource(data, contentType);
+    public static MimeBodyPart fromFile(Path filePath, final String contentType) throws IOException, MessagingException {
+        if (!Files.isReadable(filePath)) {
+            throw new FileNotFoundException("Can not read file : " + filePath);
+        }
+        FileDataSource dataSource = new FileDataSource(filePath.toFile()) {
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+        };
         MimeBodyPart outBodyPart = new MimeBodyPart();
         outBodyPart.setDataHandler(new DataHandler(dataSource));
         return outBodyPart;
@@ -3,7 +3,6 @@ package org.cleanas2.service.net.util;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.*;
-import org.apache.http.impl.DefaultBHttpServerConnection;
 import org.apache.http.message.BasicHeader;
 import org.cleanas2.common.MdnMode;
 
@@ -40,14 +39,14 @@ public class NetUtil {
     /**
      * Get debugging info for logging
      */
-    private static String getRemoteInfo(DefaultBHttpServerConnection c) {
+    private static String getRemoteInfo(HttpInetConnection c) {
         return String.format("%s:%d", c.getRemoteAddress(), c.getRemotePort());
     }
 
     /**
      * Get debugging info for logging
      */
-    private static String getLocalInfo(DefaultBHttpServerConnection c) {
+    private static String getLocalInfo(HttpInetConnection c) {
         return String.format("%s:%d", c.getLocalAddress(), c.getLocalPort());
     }
 
@@ -65,7 +64,7 @@ public class NetUtil {
         return String.format("%s:%s", s.getLocalAddress().getHostAddress(), Integer.toString(s.getLocalPort()));
     }
 
-    public static String getEndpointInfo(DefaultBHttpServerConnection conn) {
+    public static String getEndpointInfo(HttpInetConnection conn) {
         return getRemoteInfo(conn) + " ==> " + getLocalInfo(conn);
     }
 
@@ -0,0 +1,477 @@
+package org.cleanas2.service.net.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.*;
+import org.apache.http.entity.AbstractHttpEntity;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.SharedInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Holds the body of an incoming request, or of a message we are about to send.  Small bodies are kept on the heap (sized from the Content-Length
+ * up front), anything larger than the threshold is written to a file in the temp directory as it arrives.
+ * Either way the data is read back as a SharedInputStream, so javax.mail can parse multiparts out of it
+ * without making more copies, and the heap used by a large transfer stays the same no matter its size.
+ * <p/>
+ * The buffer is a DataSource, so a MimeBodyPart can be created straight from it.  Because the parts parsed
+ * from it still point into the buffer, their content can be written out file to file (see transferContent).
+ * Call close() when done with the request to delete the temp file.
+ * <p/>
+ * For sending, fromContent() writes the signed/encrypted part into a buffer once, so it can be uploaded
+ * with a known Content-Length (see PayloadEntity) without holding it all in memory.
+ */
+public class PayloadBuffer implements DataSource, Closeable {
+
+    private static final Log logger = LogFactory.getLog(PayloadBuffer.class.getSimpleName());
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+    private final String contentType;
+    private final Path tempDir;
+    private final int threshold;
+    private HeapBuffer memory;
+    private Path file;
+    private FileChannel fileChannel;
+    private long size = 0;
+    private boolean reading = false;
+
+    /**
+     * @param contentType    Content-Type of the body
+     * @param expectedLength Content-Length, or a negative number if not known (chunked)
+     * @param tempDir        Directory to write large bodies to
+     * @param threshold      Bodies larger than this many bytes are written to disk
+     */
+    public PayloadBuffer(String contentType, long expectedLength, Path tempDir, int threshold) throws IOException {
+        this.contentType = contentType;
+        this.tempDir = tempDir;
+        this.threshold = threshold;
+        if (expectedLength > threshold) {
+            openFile();
+        } else {
+            this.memory = new HeapBuffer(expectedLength > 0 ? (int) expectedLength : COPY_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Returns the payload for the request, reading the entity into a new buffer if that hasn't been done yet.  The
+     * entity of the request is replaced by the buffer, so this can be called more than once, and release() can find it.
+     */
+    public static PayloadBuffer fromRequest(HttpEntityEnclosingRequest request, Path tempDir, int threshold) throws IOException {
+        HttpEntity entity = request.getEntity();
+        if (entity instanceof PayloadEntity) {
+            return ((PayloadEntity) entity).payload;
+        }
+        if (entity == null) {
+            throw new IOException("Request did not contain a body");
+        }
+
+        Header ct = request.getFirstHeader("Content-Type");
+        PayloadBuffer payload = new PayloadBuffer(ct == null ? null : ct.getValue(), entity.getContentLength(), tempDir, threshold);
+        try (InputStream in = entity.getContent()) {
+            payload.readFrom(in);
+        } catch (IOException e) {
+            payload.close();
+            throw e;
+        }
+        request.setEntity(new PayloadEntity(payload));
+        return payload;
+    }
+
+    /**
+     * Deletes the temp file (if any) of the payload attached to this request
+     */
+    public static void release(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity instanceof PayloadEntity) {
+                ((PayloadEntity) entity).payload.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the content of the part (no headers, e.g. the signed multipart or the encrypted data) into a new
+     * buffer.  The signing/encryption done by bouncy castle happens here, as the content is written.
+     */
+    public static PayloadBuffer fromContent(MimeBodyPart part, Path tempDir, int threshold) throws IOException, MessagingException {
+        PayloadBuffer payload = new PayloadBuffer(part.getContentType(), -1, tempDir, threshold);
+        try (OutputStream out = payload.newOutputStream()) {
+            part.getDataHandler().writeTo(out);
+        } catch (IOException | MessagingException e) {
+            payload.close();
+            throw e;
+        }
+        return payload;
+    }
+
+    public void readFrom(InputStream in) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            write(ByteBuffer.wrap(buffer, 0, n));
+        }
+    }
+
+    public void write(ByteBuffer src) throws IOException {
+        if (memory == null && fileChannel == null) {
+            throw new IOException("Payload has already been released");
+        }
+        if (reading) {
+            // the streams handed out only read up to the size at the time
+            throw new IOException("Payload is already being read, nothing more can be written");
+        }
+        int len = src.remaining();
+        if (memory != null && memory.size() + len > threshold) {
+            spillToFile();
+        }
+        if (memory != null) {
+            if (src.hasArray()) {
+                memory.write(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.limit());
+            } else {
+                byte[] tmp = new byte[len];
+                src.get(tmp);
+                memory.write(tmp, 0, len);
+            }
+        } else {
+            while (src.hasRemaining()) {
+                fileChannel.write(src);
+            }
+        }
+        size += len;
+    }
+
+    /**
+     * A stream that writes into the buffer.  Nothing is buffered in the stream itself, so there is no need to close it
+     */
+    public OutputStream newOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                PayloadBuffer.this.write(ByteBuffer.wrap(new byte[]{(byte) b}));
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                PayloadBuffer.this.write(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isOnDisk() {
+        return file != null;
+    }
+
+    private void openFile() throws IOException {
+        file = Files.createTempFile(tempDir, "payload-", ".tmp");
+        fileChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private void spillToFile() throws IOException {
+        logger.debug("payload is larger than " + threshold + " bytes, writing it to disk");
+        openFile();
+        ByteBuffer existing = memory.asByteBuffer();
+        while (existing.hasRemaining()) {
+            fileChannel.write(existing);
+        }
+        memory = null;
+    }
+
+    /**
+     * Each call returns a new stream from the start of the data.  Once this is called nothing more can be written.
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (memory == null && fileChannel == null) {
+            throw new IOException("Payload has already been released");
+        }
+        reading = true;
+        return new PayloadStream(this, 0, size);
+    }
+
+    /**
+     * Reads data from any position, without changing the state of the buffer (so any number of streams can read)
+     */
+    private int readAt(long position, byte[] b, int off, int len) throws IOException {
+        if (memory != null) {
+            System.arraycopy(memory.array(), (int) position, b, off, len);
+            return len;
+        }
+        if (fileChannel == null) {
+            throw new IOException("Payload has already been released");
+        }
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        while (dst.hasRemaining()) {
+            if (fileChannel.read(dst, position + dst.position() - off) < 0) break;
+        }
+        return dst.position() - off;
+    }
+
+    /**
+     * Writes part of the data to the channel.  For data on disk this is a FileChannel.transferTo, so the OS copies
+     * it without it passing through the heap
+     */
+    private void transferTo(long position, long count, FileChannel target) throws IOException {
+        if (memory != null) {
+            ByteBuffer src = ByteBuffer.wrap(memory.array(), (int) position, (int) count);
+            while (src.hasRemaining()) {
+                target.write(src);
+            }
+            return;
+        }
+        if (fileChannel == null) {
+            throw new IOException("Payload has already been released");
+        }
+        long done = 0;
+        while (done < count) {
+            long n = fileChannel.transferTo(position + done, Math.min(count - done, MAX_TRANSFER_SIZE), target);
+            if (n <= 0) {
+                throw new EOFException("Payload file is shorter than expected");
+            }
+            done += n;
+        }
+    }
+
+    /**
+     * Writes the content of a body part to the channel, if the content is still sitting in a PayloadBuffer and does
+     * not need to be decoded (binary, 8bit, 7bit).  This skips the DataHandler / decoder streams entirely, and for a
+     * payload on disk is a file to file copy.
+     *
+     * @return false if the content is not in a payload buffer, and has to be copied the normal way
+     */
+    public static boolean transferContent(MimeBodyPart part, FileChannel target) throws IOException, MessagingException {
+        String encoding = part.getEncoding();
+        if (encoding != null && !"binary".equalsIgnoreCase(encoding) && !"8bit".equalsIgnoreCase(encoding) && !"7bit".equalsIgnoreCase(encoding)) {
+            return false;
+        }
+
+        // a part created directly from the buffer (e.g. an unencrypted request), the whole buffer is the content
+        DataHandler dh = part.getDataHandler();
+        if (dh != null && dh.getDataSource() instanceof PayloadBuffer) {
+            PayloadBuffer payload = (PayloadBuffer) dh.getDataSource();
+            payload.transferTo(0, payload.size(), target);
+            return true;
+        }
+
+        // a part parsed out of the buffer, which points to where its content is
+        InputStream raw;
+        try {
+            raw = part.getRawInputStream();
+        } catch (MessagingException e) {
+            return false; // no content stream, e.g. content set by setContent()
+        }
+        try {
+            if (!(raw instanceof PayloadStream)) {
+                return false;
+            }
+            PayloadStream content = (PayloadStream) raw;
+            content.payload.transferTo(content.start, content.end - content.start, target);
+            return true;
+        } finally {
+            raw.close();
+        }
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("PayloadBuffer is read only");
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String getName() {
+        return file == null ? "payload" : file.getFileName().toString();
+    }
+
+    /**
+     * Frees the memory, or deletes the temp file.  Any stream still open on the buffer fails from then on, so only
+     * call this once everything reading it (including parts parsed out of it) is done.
+     */
+    @Override
+    public void close() {
+        memory = null;
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+                fileChannel = null;
+            }
+            if (file != null) {
+                Files.deleteIfExists(file);
+                file = null;
+            }
+        } catch (IOException e) {
+            logger.error("Error deleting payload temp file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lets us read the data back out without copying the internal array
+     */
+    private static class HeapBuffer extends ByteArrayOutputStream {
+        HeapBuffer(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * A stream over a range of the buffer.  javax.mail uses newStream() to give each parsed part a stream over
+     * just its own content, which is how transferContent() knows where the content of a part is.
+     */
+    private static class PayloadStream extends InputStream implements SharedInputStream {
+        private final PayloadBuffer payload;
+        private final long start;
+        private final long end;
+        private final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        private long bufferStart = 0;
+        private int bufferLength = 0;
+        private long position;
+        private long mark;
+
+        PayloadStream(PayloadBuffer payload, long start, long end) {
+            this.payload = payload;
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.mark = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            if (position < bufferStart || position >= bufferStart + bufferLength) {
+                bufferStart = position;
+                bufferLength = payload.readAt(position, buffer, 0, (int) Math.min(buffer.length, end - position));
+                if (bufferLength <= 0) {
+                    return -1;
+                }
+            }
+            return buffer[(int) (position++ - bufferStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int n = payload.readAt(position, b, off, (int) Math.min(len, end - position));
+            if (n <= 0) {
+                return -1;
+            }
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public synchronized void reset() {
+            position = mark;
+        }
+
+        @Override
+        public long getPosition() {
+            return position - start;
+        }
+
+        @Override
+        public InputStream newStream(long start, long end) {
+            return new PayloadStream(payload, this.start + start, end < 0 ? this.end : this.start + end);
+        }
+    }
+
+    /**
+     * Replaces the entity of a request once the body has been read into a PayloadBuffer.  Also used as the
+     * entity of the POST when sending a file, since the length is known and it can be sent more than once.
+     */
+    public static class PayloadEntity extends AbstractHttpEntity {
+        private final PayloadBuffer payload;
+
+        public PayloadEntity(PayloadBuffer payload) {
+            this.payload = payload;
+            setContentType(payload.getContentType());
+        }
+
+        public PayloadBuffer getPayload() {
+            return payload;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return payload.size();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return payload.getInputStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = getContent()) {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.cleanas2.service.polling;
+
+import java.util.Random;
+
+/**
+ * Tracks if a partner is up, so we stop throwing files at one that is down.
+ * <pre>
+ * CLOSED    - sends go out as normal.  after "failures" sends in a row could not reach the partner, it is OPEN
+ * OPEN      - nothing is sent until the retry time.  then one send is let through as a test, and it is HALF_OPEN
+ * HALF_OPEN - waiting on the test send.  if it gets through we are CLOSED again, if not it is OPEN again and the
+ *             wait is doubled (up to the max)
+ * </pre>
+ * The wait has some jitter added (+/- "jitter" percent), so many servers with the same dead partner do not all
+ * come back to it at the same moment.  All times are in ms, and passed in so this never looks at the clock itself.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final int jitter;
+    private final Random random;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private int opened = 0;
+    private long retryAt = 0;
+
+    public CircuitBreaker(int failureThreshold, long retryDelay, long maxRetryDelay, int jitter, Random random) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.retryDelay = Math.max(1, retryDelay);
+        this.maxRetryDelay = Math.max(this.retryDelay, maxRetryDelay);
+        this.jitter = Math.max(0, Math.min(100, jitter));
+        this.random = random;
+    }
+
+    /**
+     * True if a send can start now.  When an OPEN partner's wait is over this lets one send through and goes to
+     * HALF_OPEN, so only call it when the send will really be started
+     */
+    public synchronized boolean allowRequest(long now) {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now >= retryAt) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * True if files for this partner should not even be prepared, because none of them can be sent yet
+     */
+    public synchronized boolean isParked(long now) {
+        return (state == State.OPEN && now < retryAt) || state == State.HALF_OPEN;
+    }
+
+    /**
+     * The partner answered (even if it did not like what we sent)
+     */
+    public synchronized void success() {
+        state = State.CLOSED;
+        failures = 0;
+        opened = 0;
+    }
+
+    /**
+     * The partner could not be reached.  Sends that were already running when it was opened are ignored
+     */
+    public synchronized void failure(long now) {
+        if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+            opened++;
+            failures = 0;
+            state = State.OPEN;
+            retryAt = now + backoff(opened);
+        }
+    }
+
+    /**
+     * How long to wait before the n-th retry (starting at 1): retryDelay doubled each time, up to the max, with jitter
+     */
+    public long backoff(int n) {
+        long delay = retryDelay;
+        for (int i = 1; i < n && delay < maxRetryDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxRetryDelay);
+        if (jitter > 0) {
+            double spread = (random.nextDouble() * 2 - 1) * jitter / 100.0;
+            delay += (long) (delay * spread);
+        }
+        return Math.max(0, delay);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getRetryAt() {
+        return retryAt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return state == State.CLOSED ? state.toString() : String.format("%s (opened %d times, retry at %tT)", state, opened, retryAt);
+    }
+}
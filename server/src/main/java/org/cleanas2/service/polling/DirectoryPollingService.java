@@ -12,53 +12,132 @@ import org.cleanas2.bus.*;
 import org.cleanas2.common.service.AdminDump;
 import org.cleanas2.common.service.ConfigurableService;
 import org.cleanas2.common.service.StoppableService;
+import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.config.json.JsonConfigMap;
 import org.cleanas2.message.OutgoingFileMessage;
+import org.cleanas2.service.PartnerService;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.SystemDir;
+import org.cleanas2.service.ServerThreads;
+import org.cleanas2.service.net.util.BroadcastContent;
 import org.cleanas2.util.DebugUtil;
 import org.joda.time.DateTime;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.io.File;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.boon.Lists.list;
-import static org.boon.criteria.ObjectFilter.eq;
-import static org.cleanas2.util.RepoCriteria.*;
 
 /**
- * Module for watching directories and sending the files that magically show up in them
- *
- * TODO: separate ALL the concerns (?) ... is a SendScheduledFilesMsg blocking the service from
- * TODO: receiving new WatchDirectory or WatchFile messages? should it be on its own thread?
+ * Module for watching directories and sending the files that magically show up in them.  The sends themselves
+ * are run by the SendScheduler, a few at a time per partner, so this only decides what is ready to go.  Files in
+ * the broadcast directory (no receiver) are sent to every partner.
+ * <p/>
+ * New files are seen through the file system's change events (see DirectoryWatcher), and the directories are
+ * only listed every "rescanInterval" seconds in case an event was missed.  With "watcher": "polling" they are
+ * listed every "pollInterval" seconds instead, like before.  Watched files wait in DueFiles until their send
+ * time, and a single thread takes each one as it comes due and hands it to the scheduler.  When a file is ready
+ * to go (finished being written) is decided by the ReadinessCheck:
+ * <pre>
+ * "server": {
+ *     "sendThreads": 16,           // files being sent at once, to all partners together
+ *     "sendThreadsPerPartner": 2,  // files being sent at once to one partner, unless its sendSettings say otherwise
+ *     "prepareAhead": 2,           // files signed and encrypted ahead for a partner, while it is busy with the last ones
+ *     "prepareBudget": 67108864,   // bytes, prepared files waiting to be sent, for all partners together
+ *     "largeFileSize": 10485760,   // bytes, larger files are sent in their own lane (see SendScheduler)
+ *     "largeSendThreads": 4,       // large files being sent at once
+ *     "watcher": "events",         // or "polling"
+ *     "rescanInterval": 300,       // seconds, with events
+ *     "pollInterval": 5,           // seconds, with polling
+ *     "readiness": "settle",       // or "rename" / "lock", see ReadinessCheck
+ *     "settleTime": 250            // ms a file must be unchanged before it is sent
+ * }
+ * </pre>
  *
  * @author Andrew Backer {@literal awbacker@gmail.com / andrew.backer@powere2e.com}
  */
 @Singleton
 public class DirectoryPollingService implements ConfigurableService, StoppableService, AdminDump {
 
-    private static final long TIMER_DELAY = 30 * 1000;  // 30 seconds
+    private static final String BROADCAST_QUEUE = "(broadcast)";
     private final Log logger = LogFactory.getLog(DirectoryPollingService.class.getSimpleName());
 
     private final Repo<Path, WatchedDir> dirRepo = Repos.builder().primaryKey("directory").uniqueSearchIndex("directory").build(Path.class, WatchedDir.class);
-    private final Repo<Path, WatchedFile> fileRepo = Repos.builder().primaryKey("file").addLogging(true).build(Path.class, WatchedFile.class);
-    private final FileAlterationMonitor monitor = new FileAlterationMonitor(5 * 1000);
-    private final Timer timer = new Timer("SendScheduledFilesMsg generator", true);
-    private boolean _isSending = false;
+    private final DueFiles files = new DueFiles();
+    private final ReadinessCheck readiness;
+    private final FileCreatedListenerAdapter listener = new FileCreatedListenerAdapter();
+    private final FileAlterationMonitor monitor;
+    private final DirectoryWatcher watcher;
+    private final Thread dispatcher;
+    private final ExecutorService sendExecutor;
+    private final ScheduledExecutorService retryTimer;
+    private final SendScheduler scheduler;
+    private final PartnerService partners;
+    private final ServerConfiguration config;
+    private OutboxJournal journal;
 
     @Inject
-    public DirectoryPollingService() throws Exception {
+    public DirectoryPollingService(ServerThreads threads, JsonConfigMap options, PartnerService partners, ServerConfiguration config) throws Exception {
+        this.partners = partners;
+        this.config = config;
+        JsonConfigMap server = options.getSection("server", true);
+        this.readiness = ReadinessCheck.fromSettings(server);
+
+        // with change events, the directories only need listing once in a while to catch anything that was missed
+        DirectoryWatcher events = null;
+        if ("events".equalsIgnoreCase(server.getOrDefault("watcher", "events"))) {
+            try {
+                events = new DirectoryWatcher(listener);
+            } catch (Exception e) {
+                logger.error("File change events are not available, polling the outbox directories instead", e);
+            }
+        }
+        this.watcher = events;
+        int scanInterval = watcher != null ? server.getOrDefault("rescanInterval", 300) : server.getOrDefault("pollInterval", 5);
+        this.monitor = new FileAlterationMonitor(scanInterval * 1000L);
+
+        // the scheduler limits how many sends and prepares run at once (in each lane), so the executor never
+        // has to queue, and just keeps idle threads around for a while to be used again
+        this.sendExecutor = threads.isVirtual()
+                ? threads.newThreadPerTaskExecutor("file-send")
+                : new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), threads.newThreadFactory("file-send"));
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(threads.newThreadFactory("partner-retry"));
+        this.scheduler = new SendScheduler(sendExecutor, retryTimer, partners, server);
+        this.dispatcher = threads.newThreadFactory("file-due").newThread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchDueFiles();
+            }
+        });
     }
 
     @Override
     public void initialize() throws Exception {
+        journal();
         monitor.start();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                MessageBus.publishAsync(new SendScheduledFilesMsg());
-            }
-        }, TIMER_DELAY, TIMER_DELAY);
+        if (watcher != null) {
+            watcher.start();
+        }
+        dispatcher.start();
+    }
+
+    /**
+     * The journal is opened by whoever needs it first, since the partner service starts watching its directories
+     * before we are initialized
+     */
+    private synchronized OutboxJournal journal() throws IOException {
+        if (journal == null) {
+            journal = new OutboxJournal(config.getDirectory(SystemDir.System));
+        }
+        return journal;
     }
 
     @Handler
@@ -68,53 +147,260 @@ public class DirectoryPollingService implements ConfigurableService, StoppableSe
         WatchedDir dir = new WatchedDir(busMessage.directory.normalize(), busMessage.senderId, busMessage.receiverId);
         dirRepo.init(list(dir));
 
-        FileAlterationObserver obs = new FileAlterationObserver(dir.directory.toFile());
-        obs.addListener(new FileCreatedListenerAdapter());
+        FileAlterationObserver obs = new LockedObserver(dir.directory.toFile());
+        obs.addListener(listener);
 
         monitor.addObserver(obs);
+        if (watcher != null) {
+            watcher.register(dir.directory, obs);
+        }
 
         // tell the observer to check the directory.  this should pick up all existing files on start
         obs.checkAndNotify();
     }
 
+    /**
+     * Hands every file that is due right now to the scheduler.  The dispatcher thread already does this as
+     * each file comes due, so this is only needed to push them along by hand
+     */
     @Handler
     public void sendScheduledFiles(SendScheduledFilesMsg busMessage) {
-        if (_isSending) {
-            logger.debug("already sending files, exiting");
+        WatchedFile f;
+        while ((f = files.poll()) != null) {
+            try {
+                schedule(f);
+            } catch (Exception e) {
+                logger.debug("Error creating and sending file-send message", e);
+            }
+        }
+    }
+
+    /**
+     * Runs on the dispatcher thread, waiting for the next due file until we are stopped
+     */
+    private void dispatchDueFiles() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                schedule(files.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable e) {
+                logger.debug("Error creating and sending file-send message", e);
+            }
+        }
+    }
+
+    /**
+     * Submits a due file to the scheduler.  The sends happen on the scheduler's threads, so this does not
+     * wait for any of them
+     */
+    private void schedule(WatchedFile f) throws IOException {
+        if (!Files.exists(f.file)) {
+            logger.debug("file to send is gone, no longer watching: " + f.file);
+            files.remove(f.file);
+            return;
+        }
+        boolean ready;
+        try {
+            ready = readiness.isReady(f);
+        } catch (IOException e) {
+            logger.debug("could not check if file is ready: " + f.file, e);
+            ready = false;
+        }
+        if (!ready) {
+            synchronized (f) {
+                f.status = WatchStatus.NEW;
+            }
+            files.reschedule(f, nextCheck(f));
+            return;
+        }
+
+        // what we send is remembered by size and modified time, so a restart knows if it is the same file
+        BasicFileAttributes attrs = Files.readAttributes(f.file, BasicFileAttributes.class);
+        final long size = attrs.size();
+        final long modified = attrs.lastModifiedTime().toMillis();
+
+        if (f.receiverId == null) {
+            scheduleBroadcast(f, size, modified);
             return;
         }
+        final OutboxJournal journal = journal();
+        if (journal.isSent(f.file, f.receiverId, size, modified)) {
+            logger.info("File was already sent before the server was restarted, not sending again: " + f.file);
+            markSent(f, size, modified);
+            return;
+        }
+        if (journal.isSending(f.file, f.receiverId)) {
+            logger.info("File was being sent when the server stopped, sending it again: " + f.file);
+        }
+        logger.debug("Scheduling file to send: " + f.file.toString());
+
+        journal.sending(f.file, f.receiverId, size, modified);
+        final WatchedFile watched = f;
+        final OutgoingFileMessage message = new OutgoingFileMessage(f.file, f.senderId, f.receiverId);
+        scheduler.submit(f.receiverId, new SendScheduler.SendJob() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public boolean prepare() {
+                return prepareFile(new PrepareFileMsg(message));
+            }
+
+            @Override
+            public boolean transmit() {
+                SendFileMsg send = new SendFileMsg(message);
+                if (sendFile(send)) {
+                    journal.sent(message.filePath, message.receiverId, size, modified);
+                    markSent(watched, size, modified);
+                }
+                return !send.partnerUnreachable;
+            }
+        });
+    }
 
+    /**
+     * Remembers what was sent, so a file that is overwritten later is seen as new and sent again (see
+     * startWatchingFile).  If it was already overwritten while it was being sent, it is sent again now
+     */
+    private void markSent(WatchedFile f, long size, long modified) {
+        synchronized (f) {
+            f.lastSize = size;
+            f.lastModified = modified;
+            f.status = WatchStatus.SENT;
+        }
         try {
-            _isSending = true;
-            while (true) {
-                List<WatchedFile> toSend = fileRepo.query(
-                        eq("status", WatchStatus.NEW),
-                        dateBeforeNow("sendAt"),
-                        pathExists("file")
-                );
-
-                if (toSend.isEmpty()) {
-                    break;
+            if (Files.exists(f.file) && isReplaced(f)) {
+                sendAgain(f);
+            }
+        } catch (IOException e) {
+            logger.debug("could not check if file changed while it was sent: " + f.file, e);
+        }
+    }
+
+    private void sendAgain(WatchedFile f) throws IOException {
+        logger.debug("file was replaced after it was sent, sending the new one: " + f.file);
+        journal().forget(f.file);
+        synchronized (f) {
+            f.status = WatchStatus.NEW;
+        }
+        files.reschedule(f, nextCheck(f));
+    }
+
+    /**
+     * A file from the broadcast directory goes to every partner with a send url.  It is read and signed once
+     * (in its own queue, so it takes a prepare slot like any other file), and then each partner gets a normal
+     * send job that only encrypts and sends it.
+     */
+    private void scheduleBroadcast(WatchedFile f, final long size, final long modified) throws IOException {
+        final OutboxJournal journal = journal();
+        List<String> receivers = new ArrayList<>();
+        for (PartnerRecord p : partners.getAllPartners()) {
+            if (p.sendSettings.url != null && !journal.isSent(f.file, p.as2id, size, modified)) {
+                receivers.add(p.as2id);
+            }
+        }
+        if (receivers.isEmpty()) {
+            logger.info("Broadcast file was already sent to every partner before the server was restarted: " + f.file);
+            markSent(f, size, modified);
+            return;
+        }
+        final WatchedFile watched = f;
+        logger.debug("Scheduling broadcast file to send: " + f.file + " to " + receivers);
+        final BroadcastFileMsg broadcast = new BroadcastFileMsg(f.file, f.senderId, receivers);
+        scheduler.submit(BROADCAST_QUEUE, new SendScheduler.SendJob() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public boolean prepare() {
+                // publish sync, so the shared content is ready when we return
+                MessageBus.publish(broadcast);
+                if (broadcast.isError()) {
+                    logger.error("Error detected while signing broadcast file", broadcast.getErrorCause());
+                    return false;
                 }
+                return true;
+            }
+
+            @Override
+            public boolean transmit() {
+                // the file counts as sent once every partner's send is over, whether it got there or not
+                final AtomicInteger remaining = new AtomicInteger(broadcast.content.size());
+                for (Map.Entry<String, BroadcastContent> e : broadcast.content.entrySet()) {
+                    final OutgoingFileMessage message = new OutgoingFileMessage(broadcast.file, broadcast.senderId, e.getKey());
+                    final BroadcastContent content = e.getValue();
+                    message.shared = true;
+                    journal.sending(message.filePath, message.receiverId, size, modified);
+                    scheduler.submit(e.getKey(), new SendScheduler.SendJob() {
+                        private boolean retried = false;
+
+                        @Override
+                        public long size() {
+                            return size;
+                        }
 
-                WatchedFile f = toSend.get(0);
-                logger.debug("Trying to send file: " + f.file.toString());
+                        @Override
+                        public boolean prepare() {
+                            // the shared content is released after the first try, so a retry signs it again itself
+                            boolean ok = prepareFile(retried ? new PrepareFileMsg(message) : new PrepareFileMsg(message, content));
+                            if (!ok) {
+                                done();
+                            }
+                            return ok;
+                        }
 
-                f.status = WatchStatus.SEND;
-                SendFileMsg message = new SendFileMsg(new OutgoingFileMessage(f.file, f.senderId, f.receiverId));
+                        @Override
+                        public boolean transmit() {
+                            SendFileMsg send = new SendFileMsg(message);
+                            if (sendFile(send)) {
+                                journal.sent(message.filePath, message.receiverId, size, modified);
+                            }
+                            retried = true;
+                            if (send.partnerUnreachable) {
+                                return false;
+                            }
+                            done();
+                            return true;
+                        }
 
-                // publish sync, so we wait for the send to be processed
-                MessageBus.publish(message);
-                if (message.isError()) {
-                    logger.error("Error detected while sending file", message.getErrorCause());
-                    //TODO: detect if host is down, and do a resend later for the other messages?
+                        private void done() {
+                            if (remaining.decrementAndGet() == 0) {
+                                markSent(watched, size, modified);
+                            }
+                        }
+                    });
                 }
+                return true;
             }
-        } catch (Throwable e) {
-            logger.debug("Error creating and sending file-send message", e);
-        } finally {
-            _isSending = false;
+        });
+    }
+
+    private boolean prepareFile(PrepareFileMsg message) {
+        // publish sync, the prepared message is kept by the sender until the SendFileMsg
+        MessageBus.publish(message);
+        if (message.isError()) {
+            logger.error("Error detected while preparing file", message.getErrorCause());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the partner has the file (the MDN was good, or we are waiting for an async one)
+     */
+    private boolean sendFile(SendFileMsg message) {
+        // publish sync, so we wait for the send to be processed
+        MessageBus.publish(message);
+        if (message.isError()) {
+            logger.error("Error detected while sending file", message.getErrorCause());
+            return false;
         }
+        return true;
     }
 
     @Handler
@@ -131,25 +417,33 @@ public class DirectoryPollingService implements ConfigurableService, StoppableSe
                 logger.debug("file to watch not found");
                 return;
             }
+            if (!readiness.accepts(file)) {
+                logger.debug("not watching temp file: " + file);
+                return;
+            }
 
             WatchedDir dir = dirRepo.get(parent);
-            WatchedFile watchedFile = fileRepo.get(file);
+            WatchedFile watchedFile = files.get(file);
 
             if (watchedFile == null) {
                 watchedFile = new WatchedFile(busMessage.file, dir);
+                watchedFile.sendAt = nextCheck(watchedFile);
                 DebugUtil.debugPrintObject(logger, "added file to watch", watchedFile);
-                fileRepo.add(watchedFile);
+                files.add(watchedFile);
             } else {
                 switch (watchedFile.status) {
                     case NEW:
-                        logger.debug("incrementing send-at on " + watchedFile.file.getFileName());
-                        watchedFile.sendAt = DateTime.now().plusSeconds(15);
+                        logger.debug("file changed, checking again later: " + watchedFile.file.getFileName());
+                        files.reschedule(watchedFile, nextCheck(watchedFile));
                         break;
                     case SEND:
-                        logger.error("file is currently being sent: " + watchedFile.file);
+                        // checked again when the send is done
+                        logger.debug("file changed while it is being sent: " + watchedFile.file);
                         break;
-                    case RESEND:
-                        logger.error("file is already in resend status");
+                    case SENT:
+                        if (isReplaced(watchedFile)) {
+                            sendAgain(watchedFile);
+                        }
                         break;
                 }
             }
@@ -159,23 +453,35 @@ public class DirectoryPollingService implements ConfigurableService, StoppableSe
     }
 
 
-    @Handler
-    public void resendFile(ResendFileMsg busMessage) {
-        logger.debug("Trying to resend message");
-        WatchedFile watchedFile = fileRepo.get(busMessage.fileToResend);
-        if (watchedFile != null) {
-            watchedFile.retries += 1;
-            watchedFile.status = WatchStatus.RESEND;
-            watchedFile.sendAt = DateTime.now().plusMinutes(15 * watchedFile.retries);
-            DebugUtil.debugPrintObject(logger, "message to be resent", watchedFile);
+    /**
+     * True if the file is not the one that was sent (its size or modified time changed)
+     */
+    private static boolean isReplaced(WatchedFile f) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(f.file, BasicFileAttributes.class);
+        synchronized (f) {
+            return a.size() != f.lastSize || a.lastModifiedTime().toMillis() != f.lastModified;
+        }
+    }
+
+    /**
+     * When the readiness check wants to look at the file next
+     */
+    private DateTime nextCheck(WatchedFile f) {
+        try {
+            synchronized (f) {
+                return DateTime.now().plus(readiness.delay(f));
+            }
+        } catch (IOException e) {
+            logger.debug("could not check if file is ready: " + f.file, e);
+            return DateTime.now().plus(ReadinessCheck.MAX_SETTLE_TIME);
         }
     }
 
     @Handler
-    public void stopWatchingFile(WatchFileStopMsg busMessage) {
-        if (fileRepo.get(busMessage.filePath) != null) {
-            logger.debug("Removing file from watch list: " + busMessage.filePath);
-            fileRepo.removeByKey(busMessage.filePath);
+    public void stopWatchingFile(WatchFileStopMsg busMessage) throws IOException {
+        journal().forget(busMessage.filePath);
+        if (files.remove(busMessage.filePath) != null) {
+            logger.debug("Removed file from watch list: " + busMessage.filePath);
         } else {
             logger.debug("File is not currently watched: " + busMessage.filePath);
         }
@@ -189,15 +495,48 @@ public class DirectoryPollingService implements ConfigurableService, StoppableSe
         for (WatchedDir x : dirRepo) {
             out.add("    " + x.toString());
         }
+        out.add(watcher != null
+                ? String.format("Watching %d directories for changes, rescanning every %d seconds", watcher.size(), monitor.getInterval() / 1000)
+                : String.format("Polling directories every %d seconds", monitor.getInterval() / 1000));
+        out.add(String.format("Watching %d files, %d waiting to be sent", files.size(), files.waiting()));
+        if (journal != null) {
+            out.add(String.format("Outbox journal remembers %d files", journal.size()));
+        }
+        out.add("Files are sent " + readiness.describe());
+        out.addAll(scheduler.dumpCurrentStatus());
         return out;
     }
 
+    /**
+     * The watcher runs an observer when it misses events, while the monitor may be running it too
+     */
+    private static class LockedObserver extends FileAlterationObserver {
+        private static final long serialVersionUID = 1L;
+
+        LockedObserver(File directory) {
+            super(directory);
+        }
+
+        @Override
+        public synchronized void checkAndNotify() {
+            super.checkAndNotify();
+        }
+    }
+
 
     @Override
     public void stop() {
         try {
-            timer.cancel();
+            dispatcher.interrupt();
+            if (watcher != null) {
+                watcher.stop();
+            }
+            retryTimer.shutdownNow();
+            sendExecutor.shutdownNow();
             monitor.stop(250); // wait 250 ms for the thread to stop, then call terminate
+            if (journal != null) {
+                journal.close();
+            }
         } catch (Exception e) {
             logger.error("Error stopping file watcher: " + e.getLocalizedMessage());
         }
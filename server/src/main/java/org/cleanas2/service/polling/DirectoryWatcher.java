@@ -0,0 +1,112 @@
+package org.cleanas2.service.polling;
+
+import org.apache.commons.io.monitor.FileAlterationListener;
+import org.apache.commons.io.monitor.FileAlterationObserver;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the outbox directories with the file system's change notifications (inotify on linux), so a new file
+ * is seen as soon as it is written instead of on the next directory listing.  The events are given to the same
+ * listener the polling observers use.
+ * <p/>
+ * If the OS drops events (OVERFLOW), or stops watching a directory, that directory's observer is run straight
+ * away to find what changed.  The observers are also still run by the monitor, but only every few minutes, to
+ * catch anything else that was missed.
+ */
+class DirectoryWatcher implements Runnable {
+
+    private static final Log logger = LogFactory.getLog(DirectoryWatcher.class.getSimpleName());
+
+    private final WatchService watcher;
+    private final FileAlterationListener listener;
+    private final Map<WatchKey, FileAlterationObserver> observers = new ConcurrentHashMap<>();
+    private Thread thread;
+
+    DirectoryWatcher(FileAlterationListener listener) throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.listener = listener;
+    }
+
+    void register(Path dir, FileAlterationObserver observer) throws IOException {
+        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        observers.put(key, observer);
+    }
+
+    void start() {
+        thread = new NamedThreadFactory("outbox-watcher").newThread(this);
+        thread.start();
+    }
+
+    void stop() {
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            logger.debug("error closing watch service: " + e.getMessage());
+        }
+    }
+
+    int size() {
+        return observers.size();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            FileAlterationObserver observer = observers.get(key);
+            if (observer != null) {
+                try {
+                    handleEvents(key, observer);
+                } catch (Exception e) {
+                    logger.error("Error handling change in " + key.watchable(), e);
+                }
+            }
+
+            if (!key.reset()) {
+                // the directory was deleted or can't be read any more.  one last scan to see what is gone
+                logger.error("no longer watching directory: " + key.watchable());
+                observers.remove(key);
+                if (observer != null) {
+                    observer.checkAndNotify();
+                }
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key, FileAlterationObserver observer) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                logger.debug("missed events in " + dir + ", scanning it");
+                observer.checkAndNotify();
+                continue;
+            }
+
+            Path file = dir.resolve((Path) event.context());
+            if (event.kind() == ENTRY_DELETE) {
+                listener.onFileDelete(file.toFile());
+            } else if (Files.isDirectory(file)) {
+                // sub directories are not sent
+            } else if (event.kind() == ENTRY_CREATE) {
+                listener.onFileCreate(file.toFile());
+            } else {
+                listener.onFileChange(file.toFile());
+            }
+        }
+    }
+}
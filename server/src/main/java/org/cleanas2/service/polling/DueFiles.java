@@ -0,0 +1,118 @@
+package org.cleanas2.service.polling;
+
+import org.joda.time.DateTime;
+
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The watched files, indexed by path, with a queue ordered by when they are due to be sent.  Getting the next
+ * due file is a queue take (log n) instead of a query over every file.
+ * <p/>
+ * When a file's send time changes, a new entry is queued and the old one is left behind; entries whose time no
+ * longer matches the file (or whose file is gone, or no longer NEW) are thrown away when they come out.
+ */
+class DueFiles {
+
+    private final ConcurrentHashMap<Path, WatchedFile> files = new ConcurrentHashMap<>();
+    private final DelayQueue<Entry> queue = new DelayQueue<>();
+
+    WatchedFile get(Path file) {
+        return files.get(file);
+    }
+
+    void add(WatchedFile f) {
+        files.put(f.file, f);
+        queue.add(new Entry(f, f.sendAt.getMillis()));
+    }
+
+    WatchedFile remove(Path file) {
+        return files.remove(file);
+    }
+
+    /**
+     * Moves the send time of a file that is still NEW
+     */
+    void reschedule(WatchedFile f, DateTime sendAt) {
+        synchronized (f) {
+            f.sendAt = sendAt;
+        }
+        queue.add(new Entry(f, sendAt.getMillis()));
+    }
+
+    /**
+     * Waits for the next file that is due, and marks it as being sent
+     */
+    WatchedFile take() throws InterruptedException {
+        while (true) {
+            WatchedFile f = claim(queue.take());
+            if (f != null) return f;
+        }
+    }
+
+    /**
+     * The next file that is due now, marked as being sent, or null if none are due
+     */
+    WatchedFile poll() {
+        Entry e;
+        while ((e = queue.poll()) != null) {
+            WatchedFile f = claim(e);
+            if (f != null) return f;
+        }
+        return null;
+    }
+
+    private WatchedFile claim(Entry e) {
+        WatchedFile f = e.file;
+        if (files.get(f.file) != f) {
+            return null;
+        }
+        synchronized (f) {
+            if (f.status != WatchStatus.NEW || f.sendAt.getMillis() != e.dueAt) {
+                return null;
+            }
+            f.status = WatchStatus.SEND;
+            return f;
+        }
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /**
+     * Files that are waiting for their send time.  Counts the files rather than the queue, which still holds the
+     * entries left behind by reschedule().  Goes over every file, so it is only meant for the status dump.
+     */
+    int waiting() {
+        int n = 0;
+        for (WatchedFile f : files.values()) {
+            if (f.status == WatchStatus.NEW) n++;
+        }
+        return n;
+    }
+
+    private static class Entry implements Delayed {
+        final WatchedFile file;
+        final long dueAt;
+
+        Entry(WatchedFile file, long dueAt) {
+            this.file = file;
+            this.dueAt = dueAt;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long other = ((Entry) o).dueAt;
+            return dueAt < other ? -1 : (dueAt == other ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package org.cleanas2.service.polling;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.util.NamedThreadFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Remembers which outbox files were sent to which partner, so a restart does not send them again.  Files sent
+ * with a sync MDN (and broadcast files) stay where they are after they are sent, and used to be sent again every
+ * time the server started.
+ * <p/>
+ * Each change is appended to "outbox.journal" in the system directory, one line per change:
+ * <pre>
+ * status \t receiver \t size \t modified \t path
+ * </pre>
+ * "SEND" when a file is handed to the sender, "SENT" once the partner has it (this one is forced to disk before
+ * we carry on), and "DONE" when the file has left the outbox and we can forget it.  A file is only "the same
+ * file" if its size and modified time match, so a new file dropped in under an old name is still sent.
+ * <p/>
+ * Every COMPACT_AFTER changes (and on open and close) the current state is written to "outbox.snapshot" and the
+ * journal is emptied.  Entries for files that are no longer there are dropped then.  On open the snapshot is
+ * read and then the journal on top of it; a line cut short by a crash is skipped.
+ * <p/>
+ * While the server runs, compacting is done on a background thread so the senders are not held up by it: the
+ * journal is moved aside to "outbox.journal.old" and a new one started, and the snapshot is written from a copy
+ * of the entries taken at that moment.  The old journal is deleted once the snapshot is in place, and until then
+ * it is replayed between the snapshot and the journal.  The inner maps are never changed in place (see apply),
+ * so the copy only needs to copy the outer one.
+ */
+class OutboxJournal {
+
+    private static final Log logger = LogFactory.getLog(OutboxJournal.class.getSimpleName());
+    private static final int COMPACT_AFTER = 10000;
+    static final String SEND = "SEND";
+    static final String SENT = "SENT";
+    static final String DONE = "DONE";
+
+    private final Path journalFile;
+    private final Path snapshotFile;
+    private final Path oldJournalFile;
+    private final Map<Path, Map<String, Entry>> entries = new HashMap<>();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(new NamedThreadFactory("outbox-journal"));
+    private FileChannel journal;
+    private int changes = 0;
+    private boolean compacting = false;
+
+    static class Entry {
+        final String status;
+        final long size;
+        final long modified;
+
+        Entry(String status, long size, long modified) {
+            this.status = status;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    OutboxJournal(Path dir) throws IOException {
+        this.journalFile = dir.resolve("outbox.journal");
+        this.snapshotFile = dir.resolve("outbox.snapshot");
+        this.oldJournalFile = dir.resolve("outbox.journal.old");
+        long start = System.currentTimeMillis();
+        int lines = replay(snapshotFile) + replay(oldJournalFile) + replay(journalFile);
+        compact();
+        logger.info(String.format("outbox journal: %d changes replayed, %d files remembered, in %d ms",
+                lines, size(), System.currentTimeMillis() - start));
+    }
+
+    /**
+     * True if this exact file (same size and modified time) has already been sent to the partner
+     */
+    synchronized boolean isSent(Path file, String receiverId, long size, long modified) {
+        Map<String, Entry> m = entries.get(file);
+        Entry e = (m == null) ? null : m.get(receiverId);
+        return e != null && SENT.equals(e.status) && e.size == size && e.modified == modified;
+    }
+
+    /**
+     * True if the file was handed to the sender, but we never heard that it got there
+     */
+    synchronized boolean isSending(Path file, String receiverId) {
+        Map<String, Entry> m = entries.get(file);
+        Entry e = (m == null) ? null : m.get(receiverId);
+        return e != null && SEND.equals(e.status);
+    }
+
+    synchronized void sending(Path file, String receiverId, long size, long modified) {
+        append(SEND, file, receiverId, size, modified, false);
+    }
+
+    synchronized void sent(Path file, String receiverId, long size, long modified) {
+        append(SENT, file, receiverId, size, modified, true);
+    }
+
+    /**
+     * The file has gone from the outbox, so forget it for all partners
+     */
+    synchronized void forget(Path file) {
+        if (entries.containsKey(file)) {
+            append(DONE, file, "*", 0, 0, false);
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the snapshot, so the next start does not have to replay the journal.  Waits for a background compact
+     * first, which needs the lock to finish, so this is not synchronized itself
+     */
+    void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                compact();
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Error closing the outbox journal", e);
+            }
+            journal = null;
+        }
+    }
+
+    private void append(String status, Path file, String receiverId, long size, long modified, boolean force) {
+        if (journal == null) {
+            logger.debug("outbox journal is closed, not recording " + status + " for " + file);
+            return;
+        }
+        apply(status, file, receiverId, size, modified);
+        try {
+            journal.write(ByteBuffer.wrap(format(status, file, receiverId, size, modified).getBytes(Charsets.UTF_8)));
+            if (force) {
+                journal.force(false);
+            }
+            if (++changes >= COMPACT_AFTER && !compacting) {
+                compactLater();
+            }
+        } catch (IOException e) {
+            logger.error("Error writing to the outbox journal, " + file + " may be sent again after a restart", e);
+        }
+    }
+
+    /**
+     * Replaces the file's map rather than changing it, so a copy taken for compactLater() stays as it was
+     */
+    private void apply(String status, Path file, String receiverId, long size, long modified) {
+        if (DONE.equals(status)) {
+            entries.remove(file);
+            return;
+        }
+        Map<String, Entry> old = entries.get(file);
+        Map<String, Entry> m = (old == null) ? new HashMap<String, Entry>(2) : new HashMap<>(old);
+        m.put(receiverId, new Entry(status, size, modified));
+        entries.put(file, m);
+    }
+
+    private static String format(String status, Path file, String receiverId, long size, long modified) {
+        return status + "\t" + receiverId + "\t" + size + "\t" + modified + "\t" + file + "\n";
+    }
+
+    private int replay(Path source) throws IOException {
+        int count = 0;
+        try (BufferedReader in = Files.newBufferedReader(source, Charsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] p = line.split("\t", 5);
+                if (!SEND.equals(p[0]) && !SENT.equals(p[0]) && !DONE.equals(p[0])) {
+                    logger.debug("skipping broken outbox journal line: " + line);
+                    continue;
+                }
+                try {
+                    apply(p[0], Paths.get(p[4]), p[1], Long.parseLong(p[2]), Long.parseLong(p[3]));
+                    count++;
+                } catch (RuntimeException e) {
+                    logger.debug("skipping broken outbox journal line: " + line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first start
+        }
+        return count;
+    }
+
+    /**
+     * Writes the current state to a new snapshot, swaps it in, and starts an empty journal.  Only used on open and
+     * close, when nothing else is waiting for the lock.  If we die after the swap but before the journals are
+     * emptied, replaying them over the new snapshot gives the same state
+     */
+    private void compact() throws IOException {
+        writeSnapshot(new HashMap<>(entries));
+        if (journal != null) {
+            journal.close();
+        }
+        journal = FileChannel.open(journalFile, CREATE, WRITE, TRUNCATE_EXISTING);
+        changes = 0;
+    }
+
+    /**
+     * Moves the journal aside and starts a new one, then writes the snapshot on the background thread.  If the
+     * last one failed the old journal is still there, so the journal is kept, and is moved aside next time.  Must
+     * be called holding the lock
+     */
+    private void compactLater() throws IOException {
+        if (!Files.exists(oldJournalFile)) {
+            journal.close();
+            Files.move(journalFile, oldJournalFile, ATOMIC_MOVE);
+            journal = FileChannel.open(journalFile, CREATE, WRITE, TRUNCATE_EXISTING);
+        }
+        changes = 0;
+
+        final Map<Path, Map<String, Entry>> copy = new HashMap<>(entries);
+        compacting = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(copy);
+                } catch (IOException e) {
+                    logger.error("Error compacting the outbox journal, it will be tried again later", e);
+                } finally {
+                    synchronized (OutboxJournal.this) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the state to a new snapshot and swaps it in, leaving out (and forgetting) the files that are gone,
+     * then deletes the old journal, which the snapshot now covers
+     */
+    private void writeSnapshot(Map<Path, Map<String, Entry>> state) throws IOException {
+        List<Path> gone = new ArrayList<>();
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(ch), Charsets.UTF_8));
+            for (Map.Entry<Path, Map<String, Entry>> f : state.entrySet()) {
+                if (!Files.exists(f.getKey())) {
+                    gone.add(f.getKey());
+                    continue;
+                }
+                for (Map.Entry<String, Entry> r : f.getValue().entrySet()) {
+                    Entry e = r.getValue();
+                    out.write(format(e.status, f.getKey(), r.getKey(), e.size, e.modified));
+                }
+            }
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(temp, snapshotFile, REPLACE_EXISTING, ATOMIC_MOVE);
+        Files.deleteIfExists(oldJournalFile);
+
+        synchronized (this) {
+            for (Path file : gone) {
+                // only if nothing was recorded for it since the copy was taken
+                if (entries.get(file) == state.get(file)) {
+                    entries.remove(file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.cleanas2.service.polling;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.config.json.JsonConfigMap;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides when a file in an outbox has been completely written and can be sent.  Which one is used comes from
+ * "server.readiness":
+ * <pre>
+ * "settle"  - (default) the size and modified time have not changed for "settleTime" ms.  Each time the file is
+ *             found still changing the wait doubles (up to "maxSettleTime"), so a slow upload is given more time
+ *             while a small file that was written in one go is sent straight away
+ * "rename"  - the file is written under a temp name (see "tempSuffixes") and renamed when done, so temp files
+ *             are ignored and anything else is sent as soon as it is seen
+ * "lock"    - the file can be locked, so nobody is still writing it.  this depends on the writer holding a lock
+ *             (which Windows does for any open file, but most other systems do not)
+ * </pre>
+ */
+abstract class ReadinessCheck {
+
+    private static final Log logger = LogFactory.getLog(ReadinessCheck.class.getSimpleName());
+
+    static final int SETTLE_TIME = 250;         // ms
+    static final int MAX_SETTLE_TIME = 15000;   // ms, the old fixed delay
+
+    static ReadinessCheck fromSettings(JsonConfigMap server) {
+        int settle = server.getOrDefault("settleTime", SETTLE_TIME);
+        String mode = server.getOrDefault("readiness", "settle");
+        if ("rename".equalsIgnoreCase(mode)) {
+            List<String> suffixes = new ArrayList<>();
+            if (server.hasList("tempSuffixes")) {
+                for (Object o : (List<?>) server.get("tempSuffixes")) {
+                    suffixes.add(o.toString());
+                }
+            } else {
+                suffixes.addAll(Arrays.asList(".tmp", ".part", ".filepart"));
+            }
+            return new Renamed(suffixes);
+        } else if ("lock".equalsIgnoreCase(mode)) {
+            return new Unlocked(settle);
+        } else if ("settle".equalsIgnoreCase(mode)) {
+            return new Settled(settle, server.getOrDefault("maxSettleTime", MAX_SETTLE_TIME));
+        }
+        throw new IllegalArgumentException("Unknown value for server.readiness: " + mode);
+    }
+
+    /**
+     * False for files that should never be sent, and are not even watched
+     */
+    boolean accepts(Path file) {
+        return true;
+    }
+
+    /**
+     * Called when a file is first seen, when it changes, and when it was checked and was not ready.  Returns
+     * how long (ms) until it should be checked
+     */
+    abstract long delay(WatchedFile f) throws IOException;
+
+    abstract boolean isReady(WatchedFile f) throws IOException;
+
+    abstract String describe();
+
+    static class Settled extends ReadinessCheck {
+        private final long settle;
+        private final long maxSettle;
+
+        Settled(long settle, long maxSettle) {
+            this.settle = settle;
+            this.maxSettle = Math.max(settle, maxSettle);
+        }
+
+        @Override
+        long delay(WatchedFile f) throws IOException {
+            f.settleTime = (f.settleTime == 0) ? settle : Math.min(maxSettle, f.settleTime * 2);
+            remember(f, Files.readAttributes(f.file, BasicFileAttributes.class));
+            return f.settleTime;
+        }
+
+        @Override
+        boolean isReady(WatchedFile f) throws IOException {
+            BasicFileAttributes a = Files.readAttributes(f.file, BasicFileAttributes.class);
+            long modified = a.lastModifiedTime().toMillis();
+            boolean same = a.size() == f.lastSize && modified == f.lastModified;
+            return same && System.currentTimeMillis() - modified >= f.settleTime;
+        }
+
+        private static void remember(WatchedFile f, BasicFileAttributes a) {
+            f.lastSize = a.size();
+            f.lastModified = a.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        String describe() {
+            return String.format("when unchanged for %d ms (up to %d ms for slow writers)", settle, maxSettle);
+        }
+    }
+
+    static class Renamed extends ReadinessCheck {
+        private final List<String> suffixes;
+
+        Renamed(List<String> suffixes) {
+            this.suffixes = suffixes;
+        }
+
+        @Override
+        boolean accepts(Path file) {
+            String name = file.getFileName().toString().toLowerCase();
+            for (String s : suffixes) {
+                if (name.endsWith(s.toLowerCase())) return false;
+            }
+            return true;
+        }
+
+        @Override
+        long delay(WatchedFile f) {
+            return 0;
+        }
+
+        @Override
+        boolean isReady(WatchedFile f) {
+            return true;
+        }
+
+        @Override
+        String describe() {
+            return "when renamed from " + suffixes;
+        }
+    }
+
+    static class Unlocked extends ReadinessCheck {
+        private final long interval;
+
+        Unlocked(long interval) {
+            this.interval = interval;
+        }
+
+        @Override
+        long delay(WatchedFile f) {
+            return interval;
+        }
+
+        /**
+         * Takes a shared lock, which only needs the file to be readable, and fails while a writer holds an
+         * exclusive one
+         */
+        @Override
+        boolean isReady(WatchedFile f) {
+            try (FileChannel ch = FileChannel.open(f.file, StandardOpenOption.READ)) {
+                FileLock lock = ch.tryLock(0, Long.MAX_VALUE, true);
+                if (lock == null) return false;
+                lock.release();
+                return true;
+            } catch (AccessDeniedException e) {
+                // waiting will not help, so let the send go ahead and report the error
+                logger.warn("cannot open file to check if it is locked, sending it anyway: " + f.file);
+                return true;
+            } catch (OverlappingFileLockException | IOException e) {
+                // locked by us, or (on windows) the writer still has it open
+                logger.debug("file is still locked: " + f.file + " (" + e + ")");
+                return false;
+            }
+        }
+
+        @Override
+        String describe() {
+            return String.format("when it can be locked, checked every %d ms", interval);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.cleanas2.service.polling;
+
+import org.cleanas2.config.json.JsonConfigMap;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * How we back off from a partner that cannot be reached, read from the optional "server.retry" section:
+ * <pre>
+ * "retry": {
+ *     "failures": 3,      // sends in a row that could not reach a partner before we stop trying it for a while
+ *     "delay": 30,        // seconds before the first retry, doubled after each one that fails
+ *     "maxDelay": 1800,   // seconds, the longest we ever wait
+ *     "jitter": 20        // percent, +/- added to each wait
+ * }
+ * </pre>
+ */
+class RetrySettings {
+
+    final int failures;
+    final long delay;
+    final long maxDelay;
+    final int jitter;
+    private final Random random = new Random();
+
+    RetrySettings(JsonConfigMap server) throws Exception {
+        JsonConfigMap retry = server.hasSection("retry")
+                ? server.getSection("retry")
+                : new JsonConfigMap(server.formatName("retry"), new HashMap<String, Object>());
+        this.failures = retry.getOrDefault("failures", 3);
+        this.delay = retry.getOrDefault("delay", 30) * 1000L;
+        this.maxDelay = retry.getOrDefault("maxDelay", 1800) * 1000L;
+        this.jitter = retry.getOrDefault("jitter", 20);
+    }
+
+    CircuitBreaker newBreaker() {
+        return new CircuitBreaker(failures, delay, maxDelay, jitter, random);
+    }
+}
@@ -0,0 +1,350 @@
+package org.cleanas2.service.polling;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.cleanas2.common.PartnerRecord;
+import org.cleanas2.common.service.AdminDump;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.PartnerService;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the file sends, with a separate queue for each partner.  Each partner may have a few sends going at
+ * once (its "sendSettings.sendThreads", or the server default) and all partners together are limited to
+ * "server.sendThreads".  The partners take turns, so one slow partner can only ever tie up its own sends.
+ * <p/>
+ * The turns are deficit round robin: on each turn a partner gets credit for QUANTUM bytes (times its
+ * "sendSettings.weight"), and may start sending files until it runs out.  A partner dropping thousands of files gets the
+ * same share as one with a single file waiting, and a partner with weight 2 gets twice the share of the others.
+ * <p/>
+ * Files of "largeFileSize" bytes or more go in a separate lane, with its own "largeSendThreads" limit, so a few
+ * huge files never hold up the small ones behind them:
+ * <pre>
+ * "server": {
+ *     "largeFileSize": 10485760,   // bytes
+ *     "largeSendThreads": 4        // default is a quarter of sendThreads
+ * }
+ * </pre>
+ * Each send is done in two parts: prepare (read, sign, encrypt) and transmit (post it, wait for the MDN).
+ * While a partner's sends are transmitting, up to "prepareAhead" more of its small files are prepared, so the
+ * crypto for the next file is already done when the partner answers the current one.  Prepared files sit in
+ * the temp directory (or in memory) until they are sent, so files are only prepared ahead while all the ones
+ * prepared and not sending yet add up to less than "prepareBudget" bytes.  Large files are only prepared when
+ * there is a free send slot for them.  Prepares have their own limit (the same as the lane's), so they never
+ * hold up a transmit.
+ * <p/>
+ * Each partner has a CircuitBreaker.  When its sends keep failing to reach it, its files are parked in the queue
+ * (not prepared, and not holding a thread) until the retry time, and then a single send goes to see if it is back.
+ * A send that could not reach the partner goes back to the front of its queue.
+ */
+public class SendScheduler implements AdminDump {
+
+    private static final Log logger = LogFactory.getLog(SendScheduler.class.getSimpleName());
+    private static final long QUANTUM = 64 * 1024;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final PartnerService partners;
+    private final RetrySettings retry;
+    private final int defaultPerPartner;
+    private final long prepareBudget;
+    private final long largeFileSize;
+    private final Lane small;
+    private final Lane large;
+    private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+    private long preparedBytes = 0;
+
+    /**
+     * One file to send.  prepare() returns false if it failed, and the file will not be transmitted.  transmit()
+     * returns false if the partner could not be reached, and the file is tried again later (prepared again first).
+     */
+    public interface SendJob {
+        /**
+         * Bytes to send, which picks the lane and how much of the partner's turn it uses
+         */
+        long size();
+
+        boolean prepare();
+
+        boolean transmit();
+    }
+
+    public SendScheduler(ExecutorService executor, ScheduledExecutorService timer, PartnerService partners, JsonConfigMap server) throws Exception {
+        this.executor = executor;
+        this.timer = timer;
+        this.partners = partners;
+        this.retry = new RetrySettings(server);
+        int maxSends = Math.max(1, server.getOrDefault("sendThreads", 16));
+        this.defaultPerPartner = Math.max(1, server.getOrDefault("sendThreadsPerPartner", 2));
+        int prepareAhead = Math.max(0, server.getOrDefault("prepareAhead", 2));
+        this.prepareBudget = server.getOrDefault("prepareBudget", 64 * 1024 * 1024);
+        this.largeFileSize = server.getOrDefault("largeFileSize", 10 * 1024 * 1024);
+        this.small = new Lane(String.format("Small files (under %d bytes)", largeFileSize), maxSends, QUANTUM, prepareAhead);
+        this.large = new Lane("Large files", Math.max(1, server.getOrDefault("largeSendThreads", maxSends / 4)), Math.max(QUANTUM, largeFileSize), 0);
+    }
+
+    /**
+     * Queues the send for the partner, and starts preparing it straight away if there is a free slot
+     */
+    public synchronized void submit(String partnerId, SendJob job) {
+        Lane lane = job.size() >= largeFileSize ? large : small;
+        lane.queueFor(partnerId).waiting.add(job);
+        startWaiting(lane);
+    }
+
+    private int limitFor(String partnerId) {
+        PartnerRecord p = partners == null ? null : partners.getPartner(partnerId);
+        return (p != null && p.sendSettings.sendThreads > 0) ? p.sendSettings.sendThreads : defaultPerPartner;
+    }
+
+    private int weightFor(String partnerId) {
+        PartnerRecord p = partners == null ? null : partners.getPartner(partnerId);
+        return (p != null && p.sendSettings.weight > 0) ? p.sendSettings.weight : 1;
+    }
+
+    /**
+     * The breaker is shared by both lanes, since it is the partner that is down and not the lane
+     */
+    private CircuitBreaker breakerFor(String key) {
+        CircuitBreaker b = breakers.get(key);
+        if (b == null) {
+            b = retry.newBreaker();
+            breakers.put(key, b);
+        }
+        return b;
+    }
+
+    private void startAll() {
+        startWaiting(small);
+        startWaiting(large);
+    }
+
+    /**
+     * Goes round the partners starting transmits and prepares until we are at the lane's limits, or nobody has
+     * anything they are allowed to start.  A partner with a prepared file transmits that before preparing
+     * another.  A partner keeps its turn while it has credit to transmit its next file, and when it runs out it
+     * gets more credit for its next turn.  Must be called holding the lock.
+     */
+    private void startWaiting(Lane lane) {
+        List<PartnerQueue> rotation = lane.rotation;
+        int idle = 0;
+        while (idle < rotation.size()) {
+            PartnerQueue q = rotation.get(lane.next);
+            long now = System.currentTimeMillis();
+            boolean started = false;
+            if (canTransmit(lane, q)) {
+                long cost = Math.max(1, q.ready.peek().size());
+                if (q.deficit >= cost) {
+                    // the breaker is asked last, since it lets a test send through when it says yes
+                    if (q.breaker.allowRequest(now)) {
+                        q.deficit -= cost;
+                        transmit(lane, q, q.ready.poll());
+                        if (q.ready.isEmpty() && q.waiting.isEmpty()) {
+                            q.deficit = 0;
+                        }
+                        continue;
+                    }
+                } else if (!q.breaker.isParked(now)) {
+                    q.deficit += lane.quantum * q.weight;
+                    started = true;
+                }
+            }
+            if (canPrepare(lane, q, now)) {
+                prepare(lane, q, q.waiting.poll());
+                started = true;
+            }
+            idle = started ? 0 : idle + 1;
+            lane.next = (lane.next + 1) % rotation.size();
+        }
+    }
+
+    private boolean canTransmit(Lane lane, PartnerQueue q) {
+        return !q.ready.isEmpty() && q.running < q.limit && lane.running < lane.maxSends;
+    }
+
+    /**
+     * A file for a free send slot is always prepared.  Beyond that, only prepare as far ahead as the partner will
+     * use soon (the lane's prepareAhead more), and only while it fits in the prepareBudget
+     */
+    private boolean canPrepare(Lane lane, PartnerQueue q, long now) {
+        if (q.waiting.isEmpty() || q.breaker.isParked(now) || lane.preparing >= lane.maxSends || q.preparing >= q.limit) {
+            return false;
+        }
+        int pending = q.running + q.preparing + q.ready.size();
+        return pending < q.limit
+                || (pending < q.limit + lane.prepareAhead && preparedBytes + q.waiting.peek().size() <= prepareBudget);
+    }
+
+    private void prepare(final Lane lane, final PartnerQueue q, final SendJob job) {
+        q.preparing++;
+        lane.preparing++;
+        preparedBytes += job.size();
+        boolean started = execute(q, new Runnable() {
+            @Override
+            public void run() {
+                boolean ok = false;
+                try {
+                    ok = job.prepare();
+                } finally {
+                    prepared(lane, q, job, ok);
+                }
+            }
+        });
+        if (!started) {
+            q.preparing--;
+            lane.preparing--;
+            preparedBytes -= job.size();
+        }
+    }
+
+    private void transmit(final Lane lane, final PartnerQueue q, final SendJob job) {
+        q.running++;
+        lane.running++;
+        preparedBytes -= job.size();
+        boolean started = execute(q, new Runnable() {
+            @Override
+            public void run() {
+                boolean reached = true;
+                try {
+                    reached = job.transmit();
+                } finally {
+                    finished(lane, q, reached ? null : job);
+                }
+            }
+        });
+        if (!started) {
+            q.running--;
+            lane.running--;
+        }
+    }
+
+    private boolean execute(PartnerQueue q, Runnable r) {
+        try {
+            executor.execute(r);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // only happens when we are shutting down
+            logger.debug("send for " + q.partnerId + " not started, the sender is stopped");
+            return false;
+        }
+    }
+
+    private synchronized void prepared(Lane lane, PartnerQueue q, SendJob job, boolean ok) {
+        q.preparing--;
+        lane.preparing--;
+        if (ok) {
+            q.ready.add(job);
+        } else {
+            preparedBytes -= job.size();
+        }
+        startAll();
+    }
+
+    /**
+     * A transmit is done.  If it could not reach the partner, the job is given back to try again.  Both lanes are
+     * looked at, since the partner's breaker may have changed for the other one too
+     */
+    private synchronized void finished(Lane lane, PartnerQueue q, SendJob failed) {
+        q.running--;
+        lane.running--;
+        if (failed == null) {
+            q.breaker.success();
+        } else {
+            q.waiting.addFirst(failed);
+            q.breaker.failure(System.currentTimeMillis());
+            if (q.breaker.getState() == CircuitBreaker.State.OPEN) {
+                wakeAt(q.breaker.getRetryAt());
+            }
+        }
+        startAll();
+    }
+
+    /**
+     * Nothing else may happen to start the parked partner's sends again, so look again when its wait is over
+     */
+    private void wakeAt(long time) {
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (SendScheduler.this) {
+                        startAll();
+                    }
+                }
+            }, Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("not scheduling a retry, the sender is stopped");
+        }
+    }
+
+    @Override
+    public synchronized List<String> dumpCurrentStatus() {
+        List<String> out = new ArrayList<>();
+        out.add(String.format("Prepared and not sending yet: %d of %d bytes", preparedBytes, prepareBudget));
+        for (Lane lane : Arrays.asList(small, large)) {
+            out.add(String.format("%s - sending: %d of %d, preparing: %d", lane.name, lane.running, lane.maxSends, lane.preparing));
+            for (PartnerQueue q : lane.rotation) {
+                out.add(String.format("    %s = %d sending (max %d), %d ready, %d preparing, %d waiting, weight %d, %s",
+                        q.partnerId, q.running, q.limit, q.ready.size(), q.preparing, q.waiting.size(), q.weight, q.breaker));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * The partner queues for one size of file, with their own limit on sends at once
+     */
+    private class Lane {
+        final String name;
+        final int maxSends;
+        final long quantum;
+        final int prepareAhead;
+        final Map<String, PartnerQueue> queues = new HashMap<>();
+        final List<PartnerQueue> rotation = new ArrayList<>();
+        int next = 0;
+        int running = 0;
+        int preparing = 0;
+
+        Lane(String name, int maxSends, long quantum, int prepareAhead) {
+            this.name = name;
+            this.maxSends = maxSends;
+            this.quantum = quantum;
+            this.prepareAhead = prepareAhead;
+        }
+
+        PartnerQueue queueFor(String partnerId) {
+            String key = partnerId.toLowerCase();
+            PartnerQueue q = queues.get(key);
+            if (q == null) {
+                q = new PartnerQueue(partnerId, limitFor(partnerId), weightFor(partnerId), breakerFor(key));
+                queues.put(key, q);
+                rotation.add(q);
+            }
+            return q;
+        }
+    }
+
+    private static class PartnerQueue {
+        final String partnerId;
+        final int limit;
+        final int weight;
+        final CircuitBreaker breaker;
+        final Deque<SendJob> waiting = new ArrayDeque<>();
+        final Queue<SendJob> ready = new ArrayDeque<>();
+        long deficit = 0;
+        int preparing = 0;
+        int running = 0;
+
+        PartnerQueue(String partnerId, int limit, int weight, CircuitBreaker breaker) {
+            this.partnerId = partnerId;
+            this.limit = limit;
+            this.weight = weight;
+            this.breaker = breaker;
+        }
+    }
+}
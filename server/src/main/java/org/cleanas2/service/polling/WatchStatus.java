@@ -6,5 +6,5 @@ package org.cleanas2.service.polling;
 public enum WatchStatus {
     NEW,
     SEND,
-    RESEND
+    SENT
 }
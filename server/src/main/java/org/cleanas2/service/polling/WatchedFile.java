@@ -12,9 +12,13 @@ public class WatchedFile {
     public final String senderId;
     public final String receiverId;
     public WatchStatus status = WatchStatus.NEW;
-    public int retries;
     public DateTime sendAt;
 
+    // used by the ReadinessCheck
+    public long lastSize = -1;
+    public long lastModified;
+    public long settleTime;
+
     public WatchedFile(Path f, WatchedDir parent) {
         this(f, parent.senderId, parent.receiverId);
     }
@@ -3,119 +3,219 @@ package org.cleanas2.service.storage;
 import net.engio.mbassy.listener.Handler;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.boon.json.JsonFactory;
 import org.cleanas2.bus.*;
 import org.cleanas2.common.PendingMdnInfoFile;
+import org.cleanas2.common.service.AdminDump;
+import org.cleanas2.common.service.StoppableService;
 import org.cleanas2.message.IncomingFileMessage;
 import org.cleanas2.message.OutgoingFileMessage;
 import org.cleanas2.service.ServerConfiguration;
 import org.cleanas2.service.SystemDir;
+import org.cleanas2.service.net.util.PayloadBuffer;
 import org.cleanas2.util.AS2Util;
 import org.cleanas2.util.JsonUtil;
+import org.cleanas2.util.NamedThreadFactory;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.nio.file.StandardOpenOption.*;
 import static org.apache.commons.lang.StringUtils.isBlank;
 
 /**
+ * Writes received files, MDNs and pending-MDN info to disk.
+ * <p>
+ * There is no single lock for the whole service.  New file names come from UniqueFileNames, which only
+ * locks the one directory while it creates the (empty) file, so a large write into one partner's inbox does
+ * not hold up any other partner.  The MDN json files have fixed names, so they are locked by name instead
+ * (one of a fixed set of lock "stripes").  They are written by a small pool of storage threads, so the bus
+ * threads that deliver those messages go straight back to work.  Received files and pending-MDN info are
+ * still saved on the publishing thread, since the pipeline needs to know if the save worked before it
+ * sends the MDN.
+ *
  * @author Andrew Backer {@literal awbacker@gmail.com / andrew.backer@powere2e.com}
  */
 @Singleton
-public class FileSystemStorageService {
+public class FileSystemStorageService implements StoppableService, AdminDump {
 
     private static final Log logger = LogFactory.getLog(FileSystemStorageService.class.getSimpleName());
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final int LOCK_STRIPES = 64;  // must be a power of two
     private final ServerConfiguration config;
-    private final Object lock = new Object();
+    private final UniqueFileNames fileNames;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Set<Path> knownDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final ThreadPoolExecutor ioExecutor;
 
     @Inject
-    public FileSystemStorageService(ServerConfiguration config) {
+    public FileSystemStorageService(ServerConfiguration config, UniqueFileNames fileNames) {
         this.config = config;
+        this.fileNames = fileNames;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        this.ioExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("storage-io"));
+        this.ioExecutor.allowCoreThreadTimeOut(true);
     }
 
     @Handler
     public void saveIncomingFile(SaveIncomingFileMsg busMessage) {
+        Path dir = null;
+        Path file = null;
         try {
-            synchronized (lock) {
-                IncomingFileMessage msg = busMessage.message;
-                String fileName = AS2Util.makeFileName(isBlank(msg.fileName) ? msg.messageId : msg.fileName);
-                Path dir = config.getDirectory(SystemDir.Inbox).resolve(msg.senderId);
-                ensureDirectory(dir);
-                Path file = AS2Util.getUniqueFileName(dir, fileName);
-                Files.copy(busMessage.fileData.getInputStream(), file);
-                logger.info("Saved file : " + fileName);
-            }
+            IncomingFileMessage msg = busMessage.message;
+            String fileName = AS2Util.makeFileName(isBlank(msg.fileName) ? msg.messageId : msg.fileName);
+            dir = config.getDirectory(SystemDir.Inbox).resolve(msg.senderId);
+            ensureDirectory(dir);
+            file = fileNames.create(dir, fileName);
+            saveContent(busMessage.fileData, file);
+            logger.info("Saved file : " + fileName);
         } catch (Exception e) {
             logger.error("Error saving the received file to a file: ", e);
             busMessage.setErrorCause(e);
+            forgetDirectory(dir);
+            deleteQuietly(file);
         }
     }
 
+    /**
+     * Writes the content of the part to the (already created) file.  If the content is still in the receive
+     * buffer this is a straight file to file copy, otherwise it is decoded and copied through the normal
+     * javax.mail streams.
+     */
+    private static void saveContent(MimeBodyPart part, Path file) throws IOException, MessagingException {
+        try (FileChannel out = FileChannel.open(file, WRITE, TRUNCATE_EXISTING)) {
+            if (PayloadBuffer.transferContent(part, out)) {
+                return;
+            }
+            try (InputStream in = part.getInputStream()) {
+                IOUtils.copyLarge(in, Channels.newOutputStream(out), new byte[COPY_BUFFER_SIZE]);
+            }
+        }
+    }
+
+    /**
+     * Creates the directory if we have not already seen it, so we only go to the disk the first time a
+     * directory is used.  If a write into it later fails it is forgotten, and checked again next time
+     */
     private void ensureDirectory(Path dir) throws IOException {
+        if (knownDirs.contains(dir)) {
+            return;
+        }
         if (!Files.isDirectory(dir)) {
             logger.debug("creating directory : " + dir);
             Files.createDirectories(dir);
         }
+        knownDirs.add(dir);
+    }
+
+    private void forgetDirectory(Path dir) {
+        if (dir != null) {
+            knownDirs.remove(dir);
+        }
+    }
+
+    private Object lockFor(Path file) {
+        int h = file.hashCode();
+        return locks[(h ^ (h >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            FileUtils.deleteQuietly(file.toFile());
+        }
     }
 
     @Handler
-    public void saveMdn(SaveMdnMsg busMessage) {
-        try {
-            synchronized (lock) {
-                Path dir = config.getDirectory(SystemDir.Mdn);
-                Path mdnFilePath = dir.resolve(AS2Util.makeFileName(busMessage.mdn.messageId, ".mdn.json"));
-                ensureDirectory(dir);
-                Files.write(mdnFilePath, JsonUtil.toPrettyJson(busMessage.mdn).getBytes());
+    public void saveMdn(final SaveMdnMsg busMessage) {
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeMdnFile(AS2Util.makeFileName(busMessage.mdn.messageId, ".mdn.json"), busMessage.mdn);
             }
-        } catch (IOException e) {
-            logger.error("Error saving the MDN to a file: ", e);
-        }
+        });
     }
 
     @Handler
-    public void saveIncomingMdn(SaveIncomingMdnMsg busMessage) {
+    public void saveIncomingMdn(final SaveIncomingMdnMsg busMessage) {
+        // yes, this is almost identical to saveMdn... if not identical.  but they are different
+        // classes and the behavior might be different later
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeMdnFile(AS2Util.makeFileName(busMessage.mdn.attributes.originalMessageId, ".mdn.json"), busMessage.mdn);
+            }
+        });
+    }
+
+    /**
+     * Runs on the storage threads.  Nothing is waiting on the result, so all we can do with an error is log it
+     */
+    private void writeMdnFile(String fileName, Object mdn) {
+        Path dir = config.getDirectory(SystemDir.Mdn);
         try {
-            synchronized (lock) {
-                // yes, this is almost identical to saveMdn... if not identical.  but they are different
-                // classes and the behavior might be different later
-                Path dir = config.getDirectory(SystemDir.Mdn);
-                Path mdnFilePath = dir.resolve(AS2Util.makeFileName(busMessage.mdn.attributes.originalMessageId, ".mdn.json"));
-                ensureDirectory(dir);
-                Files.write(mdnFilePath, JsonUtil.toPrettyJson(busMessage.mdn).getBytes());
+            ensureDirectory(dir);
+            Path mdnFilePath = dir.resolve(fileName);
+            byte[] json = JsonUtil.toPrettyJson(mdn).getBytes(Charsets.UTF_8);
+            synchronized (lockFor(mdnFilePath)) {
+                Files.write(mdnFilePath, json);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (Exception e) {
+            forgetDirectory(dir);
+            logger.error("Error saving the MDN to a file: ", e);
         }
     }
 
     @Handler
     public void savePendingMdnInfoToFiles(SavePendingMdnMsg busMessage) {
         try {
-            synchronized (lock) {
-                OutgoingFileMessage msg = busMessage.msg;
-                logger.debug("Storing pending MDN info");
-
-                String fileName = AS2Util.makeFileName(msg.messageId, ".json");
-                Path infoFile = config.getDirectory(SystemDir.PendingMdnInfo).resolve(fileName);
-                Path dataFile = AS2Util.getUniqueFileName(config.getDirectory(SystemDir.PendingMdn), msg.filePath);
+            OutgoingFileMessage msg = busMessage.msg;
+            logger.debug("Storing pending MDN info");
 
-                PendingMdnInfoFile pm = new PendingMdnInfoFile();
-                pm.originalFile = msg.filePath.toString();
-                pm.pendingFile = dataFile.toString();
-                pm.outgoingMic = msg.outgoingMic;
+            String fileName = AS2Util.makeFileName(msg.messageId, ".json");
+            Path infoFile = config.getDirectory(SystemDir.PendingMdnInfo).resolve(fileName);
+            Path pendingDir = config.getDirectory(SystemDir.PendingMdn);
 
-                Files.write(infoFile, JsonUtil.toPrettyJson(pm).getBytes(Charsets.UTF_8), CREATE, TRUNCATE_EXISTING);
-                Files.move(msg.filePath, dataFile);
+            PendingMdnInfoFile pm = new PendingMdnInfoFile();
+            pm.originalFile = msg.filePath.toString();
+            pm.outgoingMic = msg.outgoingMic;
 
-                msg.pendingInfo.infoFile = infoFile.toString();
-                msg.pendingInfo.dataFile = dataFile.toString();
-                msg.status = "pending";
+            // the name is reserved by creating an empty file, which the move then replaces
+            Path dataFile = fileNames.create(pendingDir, msg.filePath.getFileName().toString());
+            pm.pendingFile = dataFile.toString();
+            Files.write(infoFile, JsonUtil.toPrettyJson(pm).getBytes(Charsets.UTF_8), CREATE, TRUNCATE_EXISTING);
+            try {
+                if (msg.shared) {
+                    Files.copy(msg.filePath, dataFile, REPLACE_EXISTING);
+                } else {
+                    Files.move(msg.filePath, dataFile, REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                // don't leave info behind that points at a file that isn't there
+                deleteQuietly(dataFile);
+                deleteQuietly(infoFile);
+                throw e;
             }
+
+            msg.pendingInfo.infoFile = infoFile.toString();
+            msg.pendingInfo.dataFile = dataFile.toString();
+            msg.status = "pending";
         } catch (Exception e) {
             busMessage.setErrorCause(e);
             logger.error("Error saving pending MDN info", e);
@@ -164,5 +264,25 @@ public class FileSystemStorageService {
         return config.getDirectory(SystemDir.PendingMdnInfo).resolve(fileName);
     }
 
+    @Override
+    public List<String> dumpCurrentStatus() {
+        List<String> items = new ArrayList<>();
+        items.add("storage threads = " + ioExecutor.getPoolSize() + " (" + ioExecutor.getActiveCount() + " busy)");
+        items.add("storage queue = " + ioExecutor.getQueue().size());
+        items.add("known directories = " + knownDirs.size());
+        return items;
+    }
 
+    @Override
+    public void stop() {
+        // let the MDN files that are already queued get written
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Storage threads did not finish, " + ioExecutor.getQueue().size() + " writes were not done");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
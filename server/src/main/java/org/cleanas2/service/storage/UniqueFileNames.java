@@ -0,0 +1,122 @@
+package org.cleanas2.service.storage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out unique file names in a directory, using the same ".1", ".2", ".3" suffixes as
+ * AS2Util.getUniqueFileName, and creates the file so nobody else can take the name.
+ * <p>
+ * The plain name is always tried first, so like getUniqueFileName a name is only given a suffix when
+ * the file is really there.  When it is taken, instead of checking "name.1", "name.2"... on disk every
+ * time, we remember the highest suffix used for each name.  The first time a directory is used it is
+ * listed once to find the suffixes that are already there; after that a new name is a map lookup and a
+ * single CREATE_NEW.  If a file was put there by someone else in the meantime the create fails and we
+ * just move on to the next suffix.
+ */
+@Singleton
+public class UniqueFileNames {
+
+    private static final Log logger = LogFactory.getLog(UniqueFileNames.class.getSimpleName());
+    private static final Pattern SUFFIX = Pattern.compile("^(.+)\\.(\\d{1,9})$");
+
+    private final ConcurrentHashMap<Path, DirectoryNames> dirs = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new, empty file in the directory named after fileName, with a suffix added if that name is
+     * already taken, and returns the full path to it.
+     */
+    public Path create(Path dir, String fileName) throws IOException {
+        dir = dir.toAbsolutePath().normalize();
+        DirectoryNames names = dirs.get(dir);
+        if (names == null) {
+            DirectoryNames created = new DirectoryNames(dir);
+            names = dirs.putIfAbsent(dir, created);
+            if (names == null) names = created;
+        }
+        return names.create(fileName);
+    }
+
+    /**
+     * The names used in one directory.  The map holds, for each base name, the highest suffix seen so far
+     * (0 means the plain name is taken).  It is filled from the directory listing on first use.
+     */
+    private static class DirectoryNames {
+        private final Path dir;
+        private Map<String, Integer> highest = null;
+
+        DirectoryNames(Path dir) {
+            this.dir = dir;
+        }
+
+        synchronized Path create(String fileName) throws IOException {
+            if (highest == null) {
+                highest = scan(dir);
+            }
+
+            // the earlier files may have been picked up or moved on since, so see if the plain name is free again
+            try {
+                Path file = Files.createFile(dir.resolve(fileName));
+                if (!highest.containsKey(fileName)) {
+                    highest.put(fileName, 0);
+                }
+                return file;
+            } catch (FileAlreadyExistsException e) {
+                // taken, so it gets a suffix
+            }
+
+            Integer last = highest.get(fileName);
+            int suffix = (last == null) ? 1 : last + 1;
+            while (true) {
+                Path file = dir.resolve(fileName + "." + suffix);
+                try {
+                    Files.createFile(file);
+                    highest.put(fileName, suffix);
+                    return file;
+                } catch (FileAlreadyExistsException e) {
+                    // created behind our back, so try the next one
+                    suffix++;
+                }
+            }
+        }
+
+        private static Map<String, Integer> scan(Path dir) throws IOException {
+            Map<String, Integer> found = new HashMap<>();
+            int count = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    count++;
+                    if (!found.containsKey(name)) {
+                        found.put(name, 0);
+                    }
+                    // "name.12" means "name" has used up to 12.  a name that only looks like it has a suffix
+                    // (e.g. "invoice.2014") just makes the suffixes for "invoice" start a bit higher
+                    Matcher m = SUFFIX.matcher(name);
+                    if (m.matches()) {
+                        String base = m.group(1);
+                        int n = Integer.parseInt(m.group(2));
+                        Integer prev = found.get(base);
+                        if (prev == null || prev < n) {
+                            found.put(base, n);
+                        }
+                    }
+                }
+            }
+            logger.debug("scanned " + count + " existing files in : " + dir);
+            return found;
+        }
+    }
+}
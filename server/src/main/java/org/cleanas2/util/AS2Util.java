@@ -50,6 +50,9 @@ public class AS2Util {
      * Takes an existing path & filename and returns a FULL PATH to a unique file.  If the
      * file does not exist, it will return the same file.  If the file exists, will append
      * a suffix ( .1, .2, .3, etc) until a unique name is found.
+     * <p/>
+     * This checks every name on disk and does not reserve the one it returns, so the storage service uses
+     * UniqueFileNames instead.
      *
      * @param dir      Base directory to use (does not include file name)
      * @param fileName Starting filename.
@@ -60,7 +63,7 @@ public class AS2Util {
         Path newFile = dir.resolve(fileName);
         int suffix = 1;
         while (Files.exists(newFile)) {
-            newFile = dir.resolve(fileName.toString() + "." + suffix);
+            newFile = dir.resolve(fileName.toString() + "." + suffix++);
         }
         return newFile;
     }
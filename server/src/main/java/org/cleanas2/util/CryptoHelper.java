@@ -9,7 +9,7 @@ import org.bouncycastle.cms.CMSAlgorithm;
 import org.bouncycastle.mail.smime.SMIMEEnvelopedGenerator;
 import org.bouncycastle.mail.smime.SMIMESignedGenerator;
 import org.bouncycastle.operator.*;
-import org.bouncycastle.operator.bc.BcDigestCalculatorProvider;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.bouncycastle.util.encoders.Base64;
 
 import javax.mail.MessagingException;
@@ -38,7 +38,13 @@ public class CryptoHelper {
     private static final Map<String, String> signAlgoMap = map(
             "MD5", "MD5withRSA",
             "SHA1", "SHA1withRSA",
-            "SHA-1", "SHA1withRSA"
+            "SHA-1", "SHA1withRSA",
+            "SHA256", "SHA256withRSA",
+            "SHA-256", "SHA256withRSA",
+            "SHA384", "SHA384withRSA",
+            "SHA-384", "SHA384withRSA",
+            "SHA512", "SHA512withRSA",
+            "SHA-512", "SHA512withRSA"
     );
 
     /**
@@ -49,6 +55,12 @@ public class CryptoHelper {
             "MD5", SMIMESignedGenerator.DIGEST_MD5,
             "SHA1", SMIMESignedGenerator.DIGEST_SHA1,
             "SHA-1", SMIMESignedGenerator.DIGEST_SHA1,
+            "SHA256", SMIMESignedGenerator.DIGEST_SHA256,
+            "SHA-256", SMIMESignedGenerator.DIGEST_SHA256,
+            "SHA384", SMIMESignedGenerator.DIGEST_SHA384,
+            "SHA-384", SMIMESignedGenerator.DIGEST_SHA384,
+            "SHA512", SMIMESignedGenerator.DIGEST_SHA512,
+            "SHA-512", SMIMESignedGenerator.DIGEST_SHA512,
             "3DES", SMIMEEnvelopedGenerator.DES_EDE3_CBC,
             "CAST5", SMIMEEnvelopedGenerator.CAST5_CBC,
             "IDEA", SMIMEEnvelopedGenerator.IDEA_CBC,
@@ -61,15 +73,30 @@ public class CryptoHelper {
     private static final Map<String, ASN1ObjectIdentifier> encryptAlgoMap = map(
             "3DES", CMSAlgorithm.DES_EDE3_CBC,
             "DES3", CMSAlgorithm.DES_EDE3_CBC,
-            "RC2", CMSAlgorithm.RC2_CBC
+            "RC2", CMSAlgorithm.RC2_CBC,
+            "AES128", CMSAlgorithm.AES128_CBC,
+            "AES192", CMSAlgorithm.AES192_CBC,
+            "AES256", CMSAlgorithm.AES256_CBC
     );
 
     private static final Map<String, String> digestAlgoNameMap = map(
             "MD5", "MD5",
             "SHA1", "SHA-1",
-            "SHA-1", "SHA-1"
+            "SHA-1", "SHA-1",
+            "SHA256", "SHA-256",
+            "SHA-256", "SHA-256",
+            "SHA384", "SHA-384",
+            "SHA-384", "SHA-384",
+            "SHA512", "SHA-512",
+            "SHA-512", "SHA-512"
     );
 
+    /**
+     * Digests are done by the JVM's own MessageDigest (the SUN provider), which uses the CPU's SHA instructions
+     * where it can.  Used for the MIC, and for the content digest when signing and verifying.
+     */
+    private static final DigestCalculatorProvider digestProvider = createDigestProvider();
+
     /**
      * Converts an algorithm name to the bouncyCastle equivalent specific algorithm identifier.  For
      * example, sha1 => SHA1withRSA.  This value can then be used by the SigningInfoGenerator
@@ -102,8 +129,8 @@ public class CryptoHelper {
     /**
      * Calculates the Message Integrity Code header for a MIME part.  The intent of this function
      * is to calculate the MIC code the same way that the smime SIGNING code does it, so that we can
-     * compare it when it comes back.  This saves us from writing a more complicated MimeUtil.sign() function
-     * that returns the signed part PLUS the digest, but we can do that if we need to later.  We probably should.
+     * compare it when it comes back.  When sending a signed message, MimeUtil.signContent gives us the digest the
+     * signer calculated instead, so this is only needed when the MIC algorithm is not the signing algorithm.
      *
      * @param part            MIME part to use
      * @param digestAlgorithm algorithm to use to generate the MIC (usually 'SHA1' or 'MD5')
@@ -115,21 +142,50 @@ public class CryptoHelper {
     public static String calculateMIC(MimeBodyPart part, String digestAlgorithm) throws GeneralSecurityException, IOException, MessagingException {
         DigestCalculator dc = getDigestCalculator(digestAlgorithm);
         part.writeTo(dc.getOutputStream()); // stream the whole part, same as it will be sent over the wire
-        String micString = Base64.toBase64String(dc.getDigest()) + ", " + digestAlgorithm;
+        return formatMIC(dc.getDigest(), digestAlgorithm);
+    }
 
+    /**
+     * Formats an already calculated digest as a MIC string (e.g. 988a8e6ee0b5b0fa234fd1d68d213953, MD5)
+     */
+    public static String formatMIC(byte[] digest, String digestAlgorithm) {
+        String micString = Base64.toBase64String(digest) + ", " + digestAlgorithm;
         logger.debug("Calculated MIC: " + micString);
         return micString;
     }
 
+    /**
+     * True if the AS2 digest algorithm name (e.g. "sha1") is the same algorithm as the OID (e.g. from a signer)
+     */
+    public static boolean isDigestAlgorithm(String digestAlgorithm, String digestAlgorithmOid) {
+        AlgorithmIdentifier id = new DefaultDigestAlgorithmIdentifierFinder().find(translateDigestAlgoName(digestAlgorithm));
+        return id != null && id.getAlgorithm().getId().equals(digestAlgorithmOid);
+    }
+
+    /**
+     * The provider of the digests used for MICs and signatures (see digestProvider)
+     */
+    public static DigestCalculatorProvider getDigestCalculatorProvider() {
+        return digestProvider;
+    }
+
+    private static DigestCalculatorProvider createDigestProvider() {
+        try {
+            return new JcaDigestCalculatorProviderBuilder().build();
+        } catch (OperatorCreationException e) {
+            throw new IllegalStateException("Could not create the digest provider", e);
+        }
+    }
+
     /**
      * Gets the digest provider based on the algorithm passed in.  This converts the AS2 accepted algorithm
      * to a bouncy castle specific one if needed ("e.g. SHA1=> SHA-1") and does the upper casing, etc
      */
-    private static DigestCalculator getDigestCalculator(String digestAlgorithm) throws GeneralSecurityException {
+    public static DigestCalculator getDigestCalculator(String digestAlgorithm) throws GeneralSecurityException {
         digestAlgorithm = translateDigestAlgoName(digestAlgorithm);
         AlgorithmIdentifier id = new DefaultDigestAlgorithmIdentifierFinder().find(digestAlgorithm);
         try {
-            return new BcDigestCalculatorProvider().get(id);
+            return digestProvider.get(id);
         } catch (OperatorCreationException e) {
             throw new GeneralSecurityException("Could not find digest algorithm for input " + digestAlgorithm, e);
         }
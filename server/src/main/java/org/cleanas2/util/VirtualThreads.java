@@ -0,0 +1,57 @@
+package org.cleanas2.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to the virtual threads added in Java 21, without needing to compile against Java 21.  The
+ * Thread.ofVirtual() builder is looked up by reflection, so the server still builds and runs on older
+ * JVMs, where isAvailable() simply returns false.
+ */
+public class VirtualThreads {
+
+    private static final boolean available = probe();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * True if the running JVM can create virtual threads
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Java 19 and 20 already have Thread.ofVirtual(), but it throws unless the JVM was started with
+     * --enable-preview, so the only reliable check is to actually create a (never started) thread.
+     */
+    private static boolean probe() {
+        try {
+            newThreadFactory("probe").newThread(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a factory for virtual threads named "[prefix]-1", "[prefix]-2", etc, the same names as
+     * the NamedThreadFactory uses.  Throws if virtual threads are not available, check isAvailable() first.
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not supported by this JVM (" + System.getProperty("java.version") + ")", e);
+        }
+    }
+}
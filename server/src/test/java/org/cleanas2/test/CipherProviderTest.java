@@ -0,0 +1,120 @@
+package org.cleanas2.test;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.cleanas2.service.net.util.MimeUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.activation.DataHandler;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.util.ByteArrayDataSource;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+/**
+ * Checks that what one content provider encrypts the other can decrypt, with each cipher, since the partner may
+ * not use the same one as us.
+ * <p/>
+ * The "benchmark" group also times each cipher and provider on a large message and prints how fast they are.  It
+ * is left out of the normal test run, use "gradle :server:benchmark" to run it.
+ */
+public class CipherProviderTest {
+
+    private static final int SIZE = 64 * 1024;
+    private static final int BENCHMARK_SIZE = 8 * 1024 * 1024;
+    private Path tempDir;
+    private KeyPair keys;
+    private X509Certificate cert;
+
+    @BeforeClass(alwaysRun = true)
+    public void createCertificate() throws Exception {
+        tempDir = Files.createTempDirectory("cipher-test");
+
+        TestCertificate certificate = new TestCertificate();
+        keys = certificate.keys;
+        cert = certificate.cert;
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteTempDir() throws Exception {
+        Files.deleteIfExists(tempDir);
+    }
+
+    @DataProvider(name = "ciphers")
+    public Object[][] ciphers() {
+        String[] algorithms = {"3des", "rc2", "aes128", "aes192", "aes256"};
+        String[] providers = {"BC", "SunJCE"};
+        Object[][] out = new Object[algorithms.length * providers.length][];
+        int i = 0;
+        for (String algorithm : algorithms) {
+            for (String provider : providers) {
+                out[i++] = new Object[]{algorithm, provider};
+            }
+        }
+        return out;
+    }
+
+    @Test(dataProvider = "ciphers")
+    public void otherProviderCanDecrypt(String algorithm, String provider) throws Exception {
+        roundTrip(content(SIZE), algorithm, provider, "BC".equals(provider) ? "SunJCE" : "BC");
+    }
+
+    @Test(dataProvider = "ciphers", groups = "benchmark")
+    public void encryptAndDecryptSpeed(String algorithm, String provider) throws Exception {
+        byte[] content = content(BENCHMARK_SIZE);
+        // once to warm up, once to time
+        roundTrip(content, algorithm, provider, provider);
+        long[] times = roundTrip(content, algorithm, provider, provider);
+        System.out.println(String.format("%-7s %-7s encrypt %6.1f MB/s, decrypt %6.1f MB/s",
+                algorithm, provider, mbPerSecond(content.length, times[0]), mbPerSecond(content.length, times[1])));
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(1).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Returns the nanoseconds taken to encrypt and to decrypt
+     */
+    private long[] roundTrip(byte[] content, String algorithm, String encryptWith, String decryptWith) throws Exception {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(content, "application/edi-x12")));
+        part.setHeader("Content-Type", "application/edi-x12");
+        part.setHeader("Content-Transfer-Encoding", "binary");
+
+        long start = System.nanoTime();
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(part, cert, algorithm, encryptWith);
+        PayloadBuffer sent = PayloadBuffer.fromContent(encrypted, tempDir, Integer.MAX_VALUE);
+        long encryptTime = System.nanoTime() - start;
+
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/");
+        request.setHeader("Content-Type", encrypted.getContentType());
+        request.setEntity(new PayloadBuffer.PayloadEntity(sent));
+
+        start = System.nanoTime();
+        MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, Integer.MAX_VALUE);
+        PayloadBuffer decrypted = new PayloadBuffer(null, sent.size(), tempDir, Integer.MAX_VALUE);
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, null, decryptWith);
+        long decryptTime = System.nanoTime() - start;
+
+        assertEquals(IOUtils.toByteArray(inner.getInputStream()), content);
+        decrypted.close();
+        PayloadBuffer.release(request);
+        return new long[]{encryptTime, decryptTime};
+    }
+
+    private static double mbPerSecond(int size, long nanos) {
+        return (size / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,82 @@
+package org.cleanas2.test;
+
+import org.cleanas2.service.polling.CircuitBreaker;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.cleanas2.service.polling.CircuitBreaker.State.*;
+import static org.testng.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker(3, 1000, 8000, 0, new Random());
+    }
+
+    @Test
+    public void opensAfterFailuresInARow() throws Exception {
+        CircuitBreaker b = breaker();
+        b.failure(0);
+        b.failure(0);
+        b.success();
+        b.failure(0);
+        b.failure(0);
+        assertEquals(b.getState(), CLOSED);
+        assertTrue(b.allowRequest(0));
+
+        b.failure(100);
+        assertEquals(b.getState(), OPEN);
+        assertEquals(b.getRetryAt(), 1100);
+        assertFalse(b.allowRequest(1099));
+        assertTrue(b.isParked(1099));
+    }
+
+    @Test
+    public void letsOneTestSendThroughAfterTheWait() throws Exception {
+        CircuitBreaker b = breaker();
+        for (int i = 0; i < 3; i++) b.failure(0);
+
+        assertFalse(b.isParked(1000));
+        assertTrue(b.allowRequest(1000));
+        assertEquals(b.getState(), HALF_OPEN);
+        assertFalse(b.allowRequest(1000));
+        assertTrue(b.isParked(1000));
+
+        b.success();
+        assertEquals(b.getState(), CLOSED);
+        assertTrue(b.allowRequest(1000));
+    }
+
+    @Test
+    public void waitDoublesEachTimeTheTestSendFails() throws Exception {
+        CircuitBreaker b = breaker();
+        for (int i = 0; i < 3; i++) b.failure(0);
+
+        long now = 0;
+        long[] expected = {1000, 2000, 4000, 8000, 8000};
+        for (long wait : expected) {
+            assertEquals(b.getRetryAt() - now, wait);
+            now = b.getRetryAt();
+            assertTrue(b.allowRequest(now));
+            b.failure(now);
+        }
+
+        // sends that started before it opened do not push the retry out
+        long retryAt = b.getRetryAt();
+        b.failure(now + 10);
+        assertEquals(b.getRetryAt(), retryAt);
+    }
+
+    @Test
+    public void jitterStaysWithinItsPercent() throws Exception {
+        CircuitBreaker b = new CircuitBreaker(1, 10000, 10000, 20, new Random(42));
+        boolean varied = false;
+        for (int i = 0; i < 200; i++) {
+            long wait = b.backoff(1);
+            assertTrue(wait >= 8000 && wait <= 12000, "wait out of range: " + wait);
+            varied |= wait != 10000;
+        }
+        assertTrue(varied);
+    }
+}
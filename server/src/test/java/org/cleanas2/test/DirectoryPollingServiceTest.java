@@ -0,0 +1,99 @@
+package org.cleanas2.test;
+
+import net.engio.mbassy.listener.Handler;
+import org.apache.commons.io.FileUtils;
+import org.cleanas2.bus.PrepareFileMsg;
+import org.cleanas2.bus.SendFileMsg;
+import org.cleanas2.bus.WatchDirectoryMsg;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.server.CommandLineConfig;
+import org.cleanas2.server.MessageBus;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.ServerThreads;
+import org.cleanas2.service.polling.DirectoryPollingService;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+public class DirectoryPollingServiceTest {
+
+    private Path home;
+    private Path outbox;
+    private DirectoryPollingService service;
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+
+    @BeforeMethod
+    public void createService() throws Exception {
+        home = Files.createTempDirectory("polling-test").toAbsolutePath();
+        outbox = home.resolve("outbox");
+        sent.clear();
+
+        Map<String, Object> ports = new HashMap<>();
+        ports.put("receiveMdn", 10091);
+        Map<String, Object> server = new HashMap<>();
+        server.put("url", "http://localhost:10090");
+        server.put("ports", ports);
+        server.put("watcher", "polling");
+        server.put("pollInterval", 1);
+        server.put("settleTime", 50);
+        Map<String, Object> root = new HashMap<>();
+        root.put("server", server);
+        JsonConfigMap options = new JsonConfigMap("", root);
+
+        ServerConfiguration config = new ServerConfiguration(new CommandLineConfig(home.resolve("config.json").toFile()), options);
+        config.initialize();
+        service = new DirectoryPollingService(new ServerThreads(options), options, null, config);
+        MessageBus.subscribe(service);
+        MessageBus.subscribe(this);
+        service.initialize();
+        MessageBus.publish(new WatchDirectoryMsg(outbox, "us", "them"));
+    }
+
+    @AfterMethod
+    public void stopService() throws Exception {
+        MessageBus.getBus().unsubscribe(this);
+        MessageBus.getBus().unsubscribe(service);
+        service.stop();
+        FileUtils.deleteDirectory(home.toFile());
+    }
+
+    @Handler
+    public void prepare(PrepareFileMsg msg) {
+    }
+
+    /**
+     * Plays the partner, which takes the file with a sync MDN, so it stays in the outbox
+     */
+    @Handler
+    public void send(SendFileMsg msg) throws Exception {
+        sent.add(new String(Files.readAllBytes(msg.as2message.filePath), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void overwrittenFileIsSentAgain() throws Exception {
+        Path file = outbox.resolve("order.edi");
+        Files.write(file, "first".getBytes(StandardCharsets.UTF_8));
+        assertEquals(sent.poll(10, TimeUnit.SECONDS), "first");
+
+        Files.write(file, "second, and longer".getBytes(StandardCharsets.UTF_8));
+        assertEquals(sent.poll(10, TimeUnit.SECONDS), "second, and longer");
+    }
+
+    @Test
+    public void unchangedFileIsOnlySentOnce() throws Exception {
+        Files.write(outbox.resolve("order.edi"), "first".getBytes(StandardCharsets.UTF_8));
+        assertEquals(sent.poll(10, TimeUnit.SECONDS), "first");
+        assertNull(sent.poll(3, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,106 @@
+package org.cleanas2.test;
+
+import org.apache.commons.io.IOUtils;
+import org.cleanas2.service.net.util.PayloadBuffer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class PayloadBufferTest {
+
+    private Path tempDir;
+
+    @BeforeClass
+    public void createTempDir() throws Exception {
+        tempDir = Files.createTempDirectory("payload-test");
+    }
+
+    @AfterClass
+    public void deleteTempDir() throws Exception {
+        Files.deleteIfExists(tempDir);
+    }
+
+    @Test
+    public void smallBodyStaysInMemory() throws Exception {
+        byte[] data = bytes(100);
+        PayloadBuffer payload = new PayloadBuffer("text/plain", data.length, tempDir, 1024);
+        payload.readFrom(new ByteArrayInputStream(data));
+
+        assertFalse(payload.isOnDisk());
+        assertEquals(readAll(payload), data);
+        assertEquals(tempDir.toFile().list().length, 0);
+        payload.close();
+    }
+
+    @Test
+    public void unknownLengthSpillsToDisk() throws Exception {
+        byte[] data = bytes(50 * 1024);
+        PayloadBuffer payload = new PayloadBuffer("text/plain", -1, tempDir, 1024);
+        payload.readFrom(new ByteArrayInputStream(data));
+
+        assertTrue(payload.isOnDisk());
+        assertEquals(payload.size(), data.length);
+        assertEquals(readAll(payload), data);
+        assertEquals(readAll(payload), data, "can be read more than once");
+
+        payload.close();
+        assertEquals(tempDir.toFile().list().length, 0, "temp file is deleted on close");
+    }
+
+    @Test
+    public void largeContentLengthGoesStraightToDisk() throws Exception {
+        PayloadBuffer payload = new PayloadBuffer("text/plain", 1024 * 1024, tempDir, 1024);
+        assertTrue(payload.isOnDisk());
+        File[] files = tempDir.toFile().listFiles();
+        assertNotNull(files);
+        assertEquals(files.length, 1);
+        payload.close();
+    }
+
+    @Test
+    public void cannotWriteOnceItIsBeingRead() throws Exception {
+        PayloadBuffer payload = new PayloadBuffer("text/plain", -1, tempDir, 1024);
+        payload.readFrom(new ByteArrayInputStream(bytes(100)));
+        InputStream in = payload.getInputStream();
+        try {
+            payload.write(ByteBuffer.wrap(bytes(10)));
+            fail("wrote to a payload that was being read");
+        } catch (IOException expected) {
+        }
+        assertEquals(IOUtils.toByteArray(in), bytes(100));
+        payload.close();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void openStreamsFailOnceItIsClosed() throws Exception {
+        PayloadBuffer payload = new PayloadBuffer("text/plain", -1, tempDir, 1024);
+        payload.readFrom(new ByteArrayInputStream(bytes(50 * 1024)));
+        InputStream in = payload.getInputStream();
+        payload.close();
+        IOUtils.toByteArray(in);
+    }
+
+    private static byte[] readAll(PayloadBuffer payload) throws Exception {
+        try (InputStream in = payload.getInputStream()) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        data[size - 1] = 'y';
+        return data;
+    }
+}
@@ -0,0 +1,239 @@
+package org.cleanas2.test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.server.CommandLineConfig;
+import org.cleanas2.service.ServerConfiguration;
+import org.cleanas2.service.ServerThreads;
+import org.cleanas2.service.net.http.HttpReceiverServiceBase;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+/**
+ * Runs many partners uploading at once against the receiver, with platform and with virtual worker threads, on
+ * both engines.  The handler just sleeps, standing in for the disk and the partner's server, which is where the
+ * real handlers spend their time.
+ * <p/>
+ * The "benchmark" group puts it under load and prints the throughput, the number of 503 busy replies and the
+ * number of threads the server started for each.  Virtual threads need a java 21+ JVM, on an older one the
+ * "virtual" rows fall back to (and so measure) platform threads.  Use "gradle :server:benchmark" to run it.
+ */
+public class ReceiveThreadsTest {
+
+    private static final AtomicInteger nextPort = new AtomicInteger(10100);
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private Path home;
+
+    @BeforeClass(alwaysRun = true)
+    public void createHome() throws Exception {
+        home = Files.createTempDirectory("receive-test").toAbsolutePath();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void deleteHome() throws Exception {
+        FileUtils.deleteDirectory(home.toFile());
+    }
+
+    /**
+     * engine, thread mode, workerThreads (0 = the default for the mode)
+     */
+    @DataProvider(name = "modes")
+    public Object[][] modes() {
+        return new Object[][]{
+                {"blocking", "platform", 0},
+                {"blocking", "platform", 200},
+                {"blocking", "virtual", 0},
+                {"nio", "platform", 0},
+                {"nio", "platform", 200},
+                {"nio", "virtual", 0},
+        };
+    }
+
+    @Test(dataProvider = "modes")
+    public void everyRequestIsAnswered(String engine, String threads, int workerThreads) throws Exception {
+        Result result = run(engine, threads, workerThreads, 20, 2, 10);
+        assertEquals(result.ok + result.busy, 40, "requests answered with a 200 or a 503");
+        assertTrue(result.ok > 0, "requests handled");
+    }
+
+    @Test(dataProvider = "modes", groups = "benchmark")
+    public void throughputAndThreads(String engine, String threads, int workerThreads) throws Exception {
+        Result result = run(engine, threads, workerThreads, 200, 5, 100);
+        System.out.println(String.format("%-8s %-8s %-9s %7.1f req/s, %4d ok, %4d busy, %4d server threads at peak",
+                engine, result.mode, workerThreads == 0 ? "default" : workerThreads + " workers",
+                result.ok / (result.nanos / 1e9), result.ok, result.busy, result.peakThreads));
+    }
+
+    /**
+     * Starts a receiver whose handler sleeps for handlerMillis, then has each of the partners post requests
+     * one after the other
+     */
+    private Result run(String engine, String threads, int workerThreads, int partners, final int requests,
+                       int handlerMillis) throws Exception {
+        final int port = nextPort.getAndIncrement();
+        Map<String, Object> ports = new HashMap<>();
+        ports.put("engine", engine);
+        ports.put("receiveMdn", port + 1000);
+        if (workerThreads > 0) {
+            ports.put("workerThreads", workerThreads);
+        }
+        Map<String, Object> server = new HashMap<>();
+        server.put("url", "http://localhost:" + port);
+        server.put("threads", threads);
+        server.put("ports", ports);
+        Map<String, Object> root = new HashMap<>();
+        root.put("server", server);
+        JsonConfigMap options = new JsonConfigMap("", root);
+
+        ServerConfiguration config = new ServerConfiguration(new CommandLineConfig(home.resolve("config.json").toFile()), options);
+        config.initialize();
+        ServerThreads serverThreads = new ServerThreads(options);
+        SleepingReceiver receiver = new SleepingReceiver(options, serverThreads, config, port, handlerMillis);
+
+        // the partners' threads are started first, so they are not counted as the server's
+        ThreadPoolExecutor clients = new ThreadPoolExecutor(partners, partners, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        clients.prestartAllCoreThreads();
+        int before = threadBean.getThreadCount();
+        threadBean.resetPeakThreadCount();
+
+        final AtomicInteger ok = new AtomicInteger();
+        final AtomicInteger busy = new AtomicInteger();
+        List<Future<?>> done = new ArrayList<>();
+        receiver.initialize();
+        try {
+            waitForPort(port);
+            long start = System.nanoTime();
+            for (int i = 0; i < partners; i++) {
+                done.add(clients.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int r = 0; r < requests; r++) {
+                            int status = post(port);
+                            if (status == 200) {
+                                ok.incrementAndGet();
+                            } else if (status == 503) {
+                                busy.incrementAndGet();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get(2, TimeUnit.MINUTES);
+            }
+            return new Result(serverThreads.getMode(), ok.get(), busy.get(), System.nanoTime() - start,
+                    threadBean.getPeakThreadCount() - before);
+        } finally {
+            clients.shutdownNow();
+            receiver.stop();
+        }
+    }
+
+    /**
+     * The nio engine binds its port on the reactor thread, so it is not listening yet when initialize returns
+     */
+    private static void waitForPort(int port) throws Exception {
+        for (int i = 0; ; i++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return;
+            } catch (ConnectException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int post(int port) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/edi-x12");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(new byte[4 * 1024]);
+        }
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            IOUtils.toByteArray(in);
+            in.close();
+        }
+        return status;
+    }
+
+    private static class Result {
+        final String mode;
+        final int ok;
+        final int busy;
+        final long nanos;
+        final int peakThreads;
+
+        Result(String mode, int ok, int busy, long nanos, int peakThreads) {
+            this.mode = mode;
+            this.ok = ok;
+            this.busy = busy;
+            this.nanos = nanos;
+            this.peakThreads = peakThreads;
+        }
+    }
+
+    private static class SleepingReceiver extends HttpReceiverServiceBase {
+        private final int port;
+        private final int handlerMillis;
+
+        SleepingReceiver(JsonConfigMap options, ServerThreads threads, ServerConfiguration config, int port, int handlerMillis) throws Exception {
+            super(options, threads, config);
+            this.port = port;
+            this.handlerMillis = handlerMillis;
+        }
+
+        @Override
+        protected HttpRequestHandler getHttpRequestHandler() {
+            return new HttpRequestHandler() {
+                @Override
+                public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+                    try {
+                        Thread.sleep(handlerMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    response.setEntity(new StringEntity("ok"));
+                }
+            };
+        }
+
+        @Override
+        protected int getPort() {
+            return port;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.cleanas2.test;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.bouncycastle.operator.DigestCalculator;
+import org.cleanas2.service.net.util.BroadcastContent;
+import org.cleanas2.service.net.util.MimeUtil;
+import org.cleanas2.service.net.util.PayloadBuffer;
+import org.cleanas2.util.CryptoHelper;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import javax.mail.internet.MimeBodyPart;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+/**
+ * Signs and encrypts a body part the way the sender does, then reads it back the way the receiver does
+ */
+public class SMimeRoundTripTest {
+
+    private static final int THRESHOLD = 16 * 1024;
+    private Path tempDir;
+    private Path sourceDir;
+    private KeyPair keys;
+    private X509Certificate cert;
+
+    @BeforeClass
+    public void createCertificate() throws Exception {
+        tempDir = Files.createTempDirectory("smime-test");
+        sourceDir = Files.createTempDirectory("smime-source");
+
+        TestCertificate certificate = new TestCertificate();
+        keys = certificate.keys;
+        cert = certificate.cert;
+    }
+
+    @AfterClass
+    public void deleteTempDir() throws Exception {
+        Files.deleteIfExists(tempDir);
+        FileUtils.deleteDirectory(sourceDir.toFile());
+    }
+
+    @Test
+    public void largeMessageIsDecryptedAndVerifiedFromDisk() throws Exception {
+        byte[] content = bytes(200 * 1024);
+        MimeBodyPart original = filePart(content);
+        MimeBodyPart signed = MimeUtil.signBodyPart(original, cert, keys.getPrivate(), "sha1");
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(signed, cert, "3des");
+
+        BasicHttpEntityEnclosingRequest request = toRequest(encrypted);
+        MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD);
+        assertTrue(MimeUtil.isEncrypted(received));
+
+        PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, null);
+        assertTrue(decrypted.isOnDisk());
+        assertTrue(MimeUtil.isSigned(inner));
+
+        MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(inner, cert);
+        assertNotNull(verified.signer, "signature was verified");
+        assertEquals(IOUtils.toByteArray(verified.content.getInputStream()), content);
+
+        // the content is still in the decrypted buffer, so it can be written out file to file
+        Path saved = tempDir.resolve("saved.edi");
+        try (FileChannel out = FileChannel.open(saved, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            assertTrue(PayloadBuffer.transferContent(verified.content, out));
+        }
+        assertEquals(Files.readAllBytes(saved), content);
+        Files.delete(saved);
+
+        // the MIC taken from the signer is the same one the sender calculates
+        assertEquals(verified.getMic("sha1"), CryptoHelper.calculateMIC(original, "sha1"));
+        assertNull(verified.getMic("md5"), "signer used a different digest");
+
+        decrypted.close();
+        PayloadBuffer.release(request);
+        assertEquals(tempDir.toFile().list().length, 0);
+    }
+
+    @Test
+    public void micIsCalculatedWhileDecrypting() throws Exception {
+        MimeBodyPart original = filePart(bytes(50 * 1024));
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(original, cert, "3des");
+
+        BasicHttpEntityEnclosingRequest request = toRequest(encrypted);
+        MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD);
+
+        PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        DigestCalculator digest = CryptoHelper.getDigestCalculator("sha1");
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, digest.getOutputStream());
+
+        assertEquals(CryptoHelper.formatMIC(digest.getDigest(), "sha1"), CryptoHelper.calculateMIC(inner, "sha1"));
+        assertEquals(CryptoHelper.calculateMIC(inner, "sha1"), CryptoHelper.calculateMIC(original, "sha1"));
+
+        decrypted.close();
+        PayloadBuffer.release(request);
+    }
+
+    @Test
+    public void sentPayloadIsWrittenToDisk() throws Exception {
+        byte[] content = bytes(200 * 1024);
+        MimeBodyPart signed = MimeUtil.signBodyPart(filePart(content), cert, keys.getPrivate(), "sha1");
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(signed, cert, "3des");
+
+        // what the sender posts, and what the receiver reads it back into, are the same buffer here
+        PayloadBuffer sent = PayloadBuffer.fromContent(encrypted, tempDir, THRESHOLD);
+        assertTrue(sent.isOnDisk());
+        BasicHttpEntityEnclosingRequest request = toRequest(sent, encrypted.getContentType());
+        assertEquals(request.getEntity().getContentLength(), sent.size());
+
+        MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD);
+        PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, null);
+        MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(inner, cert);
+        assertEquals(IOUtils.toByteArray(verified.content.getInputStream()), content);
+
+        decrypted.close();
+        PayloadBuffer.release(request);
+        assertEquals(tempDir.toFile().list().length, 0);
+    }
+
+    @DataProvider
+    public Object[][] sampleFiles() {
+        return new Object[][]{
+                {"sha1", 1}, {"sha1", 1000}, {"sha1", 300 * 1024},
+                {"md5", 1}, {"md5", 1000}, {"md5", 300 * 1024},
+                {"sha256", 1000}, {"sha-256", 300 * 1024}, {"sha384", 1000}, {"sha512", 300 * 1024},
+        };
+    }
+
+    @Test(dataProvider = "sampleFiles")
+    public void signerMicIsTheSameAsTheCalculatedMic(String algorithm, int size) throws Exception {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        MimeBodyPart original = filePart(content);
+
+        MimeUtil.SignedContent signed = MimeUtil.signContent(original, cert, keys.getPrivate(), algorithm);
+        assertNull(signed.getMic(algorithm), "nothing is signed until the part is written");
+
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(signed.part, cert, "3des");
+        PayloadBuffer sent = PayloadBuffer.fromContent(encrypted, tempDir, THRESHOLD);
+
+        assertEquals(signed.getMic(algorithm), CryptoHelper.calculateMIC(original, algorithm));
+        assertNull(signed.getMic("md5".equals(algorithm) ? "sha1" : "md5"));
+
+        // and the partner can verify it, with the same MIC
+        BasicHttpEntityEnclosingRequest request = toRequest(sent, encrypted.getContentType());
+        PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD), cert, keys.getPrivate(), decrypted, null);
+        MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(inner, cert);
+        assertNotNull(verified.signer, "signature was verified");
+        assertEquals(verified.getMic(algorithm), signed.getMic(algorithm));
+
+        decrypted.close();
+        PayloadBuffer.release(request);
+    }
+
+    @Test
+    public void broadcastIsSignedOnceAndEncryptedForEachPartner() throws Exception {
+        byte[] content = bytes(100 * 1024);
+        MimeBodyPart original = filePart(content);
+        MimeUtil.SignedContent signed = MimeUtil.signContent(original, cert, keys.getPrivate(), "sha1");
+        PayloadBuffer data = BroadcastContent.writePart(signed.part, tempDir, THRESHOLD);
+        assertTrue(data.isOnDisk());
+        BroadcastContent broadcast = new BroadcastContent(data, signed.getMic("sha1"));
+        assertEquals(broadcast.mic, CryptoHelper.calculateMIC(original, "sha1"));
+        broadcast.retain(3);
+        broadcast.release();
+
+        for (int partner = 0; partner < 3; partner++) {
+            MimeBodyPart encrypted = MimeUtil.encryptBodyPart(broadcast.newPart(), cert, "3des");
+            PayloadBuffer sent = PayloadBuffer.fromContent(encrypted, tempDir, THRESHOLD);
+
+            BasicHttpEntityEnclosingRequest request = toRequest(sent, encrypted.getContentType());
+            MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD);
+            PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+            MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, null);
+
+            MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(inner, cert);
+            assertNotNull(verified.signer, "signature was verified");
+            assertEquals(IOUtils.toByteArray(verified.content.getInputStream()), content);
+            assertEquals(verified.getMic("sha1"), broadcast.mic);
+
+            decrypted.close();
+            PayloadBuffer.release(request);
+            broadcast.release();
+        }
+        assertEquals(tempDir.toFile().list().length, 0, "shared content is deleted after the last partner");
+    }
+
+    @DataProvider
+    public Object[][] compressOrder() {
+        return new Object[][]{{true}, {false}};
+    }
+
+    @Test(dataProvider = "compressOrder")
+    public void compressedMessageIsDecompressedFromDisk(boolean beforeSigning) throws Exception {
+        byte[] content = bytes(300 * 1024);
+        MimeBodyPart original = filePart(content);
+        MimeBodyPart part = beforeSigning ? MimeUtil.compressBodyPart(original, "binary") : original;
+        MimeUtil.SignedContent signed = MimeUtil.signContent(part, cert, keys.getPrivate(), "sha1");
+        part = beforeSigning ? signed.part : MimeUtil.compressBodyPart(signed.part, "binary");
+        MimeBodyPart encrypted = MimeUtil.encryptBodyPart(part, cert, "3des");
+        PayloadBuffer sent = PayloadBuffer.fromContent(encrypted, tempDir, THRESHOLD);
+        assertTrue(sent.size() < content.length / 10, "sent " + sent.size() + " bytes");
+
+        BasicHttpEntityEnclosingRequest request = toRequest(sent, encrypted.getContentType());
+        MimeBodyPart received = MimeUtil.fromHttpRequest(request, tempDir, THRESHOLD);
+        PayloadBuffer decrypted = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        PayloadBuffer decompressed = new PayloadBuffer(null, -1, tempDir, THRESHOLD);
+        MimeBodyPart inner = MimeUtil.decryptBodyPart(received, cert, keys.getPrivate(), decrypted, null);
+
+        if (!beforeSigning) {
+            assertTrue(MimeUtil.isCompressed(inner));
+            inner = MimeUtil.decompressBodyPart(inner, decompressed, null);
+        }
+        MimeUtil.VerifiedContent verified = MimeUtil.verifySignature(inner, cert);
+        assertNotNull(verified.signer, "signature was verified");
+        inner = verified.content;
+        if (beforeSigning) {
+            assertTrue(MimeUtil.isCompressed(inner));
+            inner = MimeUtil.decompressBodyPart(inner, decompressed, null);
+        }
+        assertTrue(decompressed.isOnDisk());
+        assertEquals(IOUtils.toByteArray(inner.getInputStream()), content);
+        assertEquals(verified.getMic("sha1"), signed.getMic("sha1"));
+
+        decompressed.close();
+        decrypted.close();
+        PayloadBuffer.release(request);
+        assertEquals(tempDir.toFile().list().length, 0);
+    }
+
+    /**
+     * What arrives over http: the content type header, and the body of the part
+     */
+    private static BasicHttpEntityEnclosingRequest toRequest(MimeBodyPart part) throws Exception {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/");
+        request.setHeader("Content-Type", part.getContentType());
+        request.setEntity(new ByteArrayEntity(IOUtils.toByteArray(part.getInputStream())));
+        return request;
+    }
+
+    /**
+     * The request as the receiver gets it, posted straight from the buffer the sender wrote
+     */
+    private static BasicHttpEntityEnclosingRequest toRequest(PayloadBuffer payload, String contentType) {
+        BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", "/");
+        request.setHeader("Content-Type", contentType);
+        request.setEntity(new PayloadBuffer.PayloadEntity(payload));
+        return request;
+    }
+
+    /**
+     * Creates the body part the same way the file sender does.  The part reads from the file, so it is left in place
+     */
+    private MimeBodyPart filePart(byte[] content) throws Exception {
+        Path file = Files.createTempFile(sourceDir, "data", ".edi");
+        Files.write(file, content);
+        MimeBodyPart part = MimeUtil.fromFile(file, "application/edi-x12");
+        part.setHeader("Content-Transfer-Encoding", "binary");
+        part.setHeader("Content-Type", "application/edi-x12");
+        part.setHeader("Content-Disposition", "Attachment; filename=\"data.edi\"");
+        return part;
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'a');
+        return data;
+    }
+}
@@ -0,0 +1,232 @@
+package org.cleanas2.test;
+
+import org.cleanas2.config.json.JsonConfigMap;
+import org.cleanas2.service.polling.SendScheduler;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SendSchedulerTest {
+
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    @BeforeMethod
+    public void createThreads() {
+        executor = Executors.newCachedThreadPool();
+        timer = Executors.newSingleThreadScheduledExecutor();
+        sent.clear();
+    }
+
+    @AfterMethod
+    public void stopThreads() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    private SendScheduler scheduler(Object... settings) throws Exception {
+        Map<String, Object> server = new HashMap<>();
+        for (int i = 0; i < settings.length; i += 2) {
+            server.put((String) settings[i], settings[i + 1]);
+        }
+        return new SendScheduler(executor, timer, null, new JsonConfigMap("server", server));
+    }
+
+    /**
+     * A job that records who it was sent for, after waiting for the latch to open
+     */
+    private SendScheduler.SendJob job(final String name, final long size, final CountDownLatch wait, final CountDownLatch done) {
+        return new SendScheduler.SendJob() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public boolean prepare() {
+                return true;
+            }
+
+            @Override
+            public boolean transmit() {
+                try {
+                    wait.await(10, TimeUnit.SECONDS);
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return true;
+                }
+                sent.add(name);
+                done.countDown();
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void smallFilesAreNotHeldUpByLargeOnes() throws Exception {
+        SendScheduler s = scheduler("sendThreads", 4, "largeSendThreads", 1, "largeFileSize", 100000,
+                "sendThreadsPerPartner", 4, "prepareAhead", 0);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch largeDone = new CountDownLatch(5);
+        CountDownLatch smallDone = new CountDownLatch(50);
+
+        for (int i = 0; i < 5; i++) {
+            s.submit("bulk", job("large", 1000000, blocked, largeDone));
+        }
+        for (int i = 0; i < 50; i++) {
+            s.submit("bulk", job("small", 5000, new CountDownLatch(0), smallDone));
+        }
+
+        assertTrue(smallDone.await(10, TimeUnit.SECONDS), "small files were held up by the large ones");
+        assertEquals(largeDone.getCount(), 5);
+        assertTrue(s.dumpCurrentStatus().toString().contains("Large files - sending: 1 of 1"), s.dumpCurrentStatus().toString());
+
+        blocked.countDown();
+        assertTrue(largeDone.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void busyPartnerDoesNotStarveTheOthers() throws Exception {
+        SendScheduler s = scheduler("sendThreads", 1, "sendThreadsPerPartner", 1, "prepareAhead", 0);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(205);
+
+        for (int i = 0; i < 200; i++) {
+            s.submit("bulk", job("bulk", 5000, go, done));
+        }
+        for (int i = 0; i < 5; i++) {
+            s.submit("other", job("other", 5000, go, done));
+        }
+        go.countDown();
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+
+        // the two take turns, so the other partner is done long before the bulk drop is
+        assertTrue(sent.lastIndexOf("other") < 12, "other partner finished at " + sent.lastIndexOf("other"));
+    }
+
+    @Test
+    public void partnersShareBytesNotFiles() throws Exception {
+        SendScheduler s = scheduler("sendThreads", 1, "sendThreadsPerPartner", 1, "prepareAhead", 2);
+        CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(40);
+
+        // a 1 MB file uses 16 turns worth of credit, while each turn covers a dozen 5 KB files
+        for (int i = 0; i < 20; i++) {
+            s.submit("big", job("big", 1024 * 1024, go, done));
+            s.submit("small", job("small", 5000, go, done));
+        }
+        go.countDown();
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+
+        List<String> first = new ArrayList<>(sent.subList(0, 15));
+        int small = Collections.frequency(first, "small");
+        assertTrue(small >= 10, "small partner only sent " + small + " of the first 15: " + first);
+    }
+
+    @Test
+    public void unreachablePartnerIsParkedAndTheRestCarryOn() throws Exception {
+        SendScheduler s = scheduler("sendThreads", 2, "sendThreadsPerPartner", 2, "retry", retry(2, 60));
+        final AtomicInteger tries = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(20);
+
+        for (int i = 0; i < 10; i++) {
+            s.submit("down", new SendScheduler.SendJob() {
+                @Override
+                public long size() {
+                    return 5000;
+                }
+
+                @Override
+                public boolean prepare() {
+                    return true;
+                }
+
+                @Override
+                public boolean transmit() {
+                    tries.incrementAndGet();
+                    return false;
+                }
+            });
+        }
+        for (int i = 0; i < 20; i++) {
+            s.submit("up", job("up", 5000, new CountDownLatch(0), done));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertTrue(tries.get() <= 3, "tried the dead partner " + tries.get() + " times");
+        assertTrue(s.dumpCurrentStatus().toString().contains("OPEN"), s.dumpCurrentStatus().toString());
+    }
+
+    @Test
+    public void filesArePreparedAheadWithinTheBudget() throws Exception {
+        SendScheduler s = scheduler("sendThreads", 1, "sendThreadsPerPartner", 1, "prepareAhead", 10, "prepareBudget", 30000);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger prepared = new AtomicInteger();
+
+        for (int i = 0; i < 10; i++) {
+            s.submit("bulk", countingJob(10000, prepared, blocked));
+        }
+        Thread.sleep(200);
+
+        // the one sending, and three more that fit in the budget
+        assertEquals(prepared.get(), 4, s.dumpCurrentStatus().toString());
+        blocked.countDown();
+    }
+
+    @Test
+    public void largeFilesAreNotPreparedAhead() throws Exception {
+        SendScheduler s = scheduler("largeSendThreads", 1, "largeFileSize", 100000, "sendThreadsPerPartner", 1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicInteger prepared = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            s.submit("bulk", countingJob(1000000, prepared, blocked));
+        }
+        Thread.sleep(200);
+
+        assertEquals(prepared.get(), 1, s.dumpCurrentStatus().toString());
+        blocked.countDown();
+    }
+
+    /**
+     * A job that counts its prepares, and does not finish transmitting until the latch opens
+     */
+    private static SendScheduler.SendJob countingJob(final long size, final AtomicInteger prepared, final CountDownLatch wait) {
+        return new SendScheduler.SendJob() {
+            @Override
+            public long size() {
+                return size;
+            }
+
+            @Override
+            public boolean prepare() {
+                prepared.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public boolean transmit() {
+                try {
+                    wait.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                return true;
+            }
+        };
+    }
+
+    private static Map<String, Object> retry(int failures, int delay) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("failures", failures);
+        m.put("delay", delay);
+        return m;
+    }
+}
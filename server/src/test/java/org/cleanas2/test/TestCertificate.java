@@ -0,0 +1,41 @@
+package org.cleanas2.test;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+/**
+ * A new RSA key pair and a self-signed certificate for it, valid for a day, for the tests that sign and encrypt.
+ * Also registers the BouncyCastle provider, like the server does when it starts.
+ */
+class TestCertificate {
+
+    final KeyPair keys;
+    final X509Certificate cert;
+
+    TestCertificate() throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        keys = gen.generateKeyPair();
+
+        X500Name name = new X500Name("CN=cleanas2 test");
+        Date now = new Date();
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(now.getTime() - 60 * 1000), new Date(now.getTime() + 24 * 3600 * 1000), name, keys.getPublic());
+        cert = new JcaX509CertificateConverter().setProvider("BC")
+                .getCertificate(builder.build(new JcaContentSignerBuilder("SHA1withRSA").setProvider("BC").build(keys.getPrivate())));
+    }
+}
@@ -0,0 +1,92 @@
+package org.cleanas2.test;
+
+import org.apache.commons.io.FileUtils;
+import org.cleanas2.service.storage.UniqueFileNames;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.testng.Assert.*;
+
+public class UniqueFileNamesTest {
+
+    private Path dir;
+
+    @BeforeMethod
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("names-test").toAbsolutePath();
+    }
+
+    @AfterMethod
+    public void deleteDir() throws Exception {
+        FileUtils.deleteDirectory(dir.toFile());
+    }
+
+    @Test
+    public void usesThePlainNameFirst() throws Exception {
+        UniqueFileNames names = new UniqueFileNames();
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.1"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.2"));
+        assertTrue(Files.exists(dir.resolve("a.edi.2")));
+    }
+
+    @Test
+    public void reusesThePlainNameOnceItIsFree() throws Exception {
+        UniqueFileNames names = new UniqueFileNames();
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.1"));
+
+        Files.delete(dir.resolve("a.edi"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.2"));
+    }
+
+    @Test
+    public void continuesFromFilesAlreadyThere() throws Exception {
+        Files.createFile(dir.resolve("a.edi"));
+        Files.createFile(dir.resolve("a.edi.1"));
+        Files.createFile(dir.resolve("a.edi.7"));
+
+        UniqueFileNames names = new UniqueFileNames();
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.8"));
+        assertEquals(names.create(dir, "b.edi"), dir.resolve("b.edi"));
+    }
+
+    @Test
+    public void skipsFilesCreatedBehindItsBack() throws Exception {
+        UniqueFileNames names = new UniqueFileNames();
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi"));
+        Files.createFile(dir.resolve("a.edi.1"));
+        assertEquals(names.create(dir, "a.edi"), dir.resolve("a.edi.2"));
+    }
+
+    @Test
+    public void concurrentCallersNeverGetTheSameName() throws Exception {
+        final UniqueFileNames names = new UniqueFileNames();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<Path>> results = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            results.add(pool.submit(new Callable<Path>() {
+                @Override
+                public Path call() throws Exception {
+                    return names.create(dir, "same.edi");
+                }
+            }));
+        }
+        Set<Path> unique = new HashSet<>();
+        for (Future<Path> f : results) {
+            unique.add(f.get());
+        }
+        pool.shutdown();
+
+        assertEquals(unique.size(), 400);
+        assertEquals(dir.toFile().list().length, 400);
+        assertTrue(unique.contains(dir.resolve("same.edi.399")));
+    }
+}